@@ -0,0 +1,39 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Large byte buffers shared by all threads and reused from table to table, so that
+ * moving COPY data allocates nothing per table. At most MAX_IDLE buffers are kept,
+ * any more given back are left to the garbage collector.
+ */
+final class BufferPool {
+
+	static final int BUFFER_SIZE = 1 << 18;
+	private static final int MAX_IDLE = 64;
+
+	private static final Queue<byte[]> idle = new ConcurrentLinkedQueue<byte[]>();
+	private static final AtomicInteger idleCount = new AtomicInteger();
+
+	private BufferPool() {}
+
+	static byte[] take() {
+		byte[] buf = idle.poll();
+		if (buf == null) return new byte[BUFFER_SIZE];
+		idleCount.decrementAndGet();
+		return buf;
+	}
+
+	static void give(byte[] buf) {
+		if (idleCount.incrementAndGet() > MAX_IDLE) {
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offer(buf);
+	}
+
+}
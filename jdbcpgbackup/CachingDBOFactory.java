@@ -2,6 +2,7 @@
 
 package jdbcpgbackup;
 
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -13,11 +14,16 @@ import java.util.Map;
 public abstract class CachingDBOFactory<T extends DbBackupObject> implements DBOFactory<T> {
 
 	protected final Schema.CachingSchemaFactory schemaFactory;
+	protected final Map<Integer,Schema> batch; // the batch current when this factory was created
+	private final Map<Integer,Schema> toLoad; // the batch but for the schemas reused from a catalog snapshot
+	private final Map<String,Map<String,T>> reused = new HashMap<String,Map<String,T>>();
 
 	protected Map<String,Map<String,T>> map = null;
 
 	protected CachingDBOFactory(Schema.CachingSchemaFactory schemaFactory) {
 		this.schemaFactory = schemaFactory;
+		this.batch = schemaFactory.getCurrentBatch();
+		this.toLoad = new HashMap<Integer,Schema>(batch);
 	}
 
 	@Override
@@ -39,15 +45,33 @@ public abstract class CachingDBOFactory<T extends DbBackupObject> implements DBO
 		return dbos == null ? null : dbos.get(name);
 	}
 
+	// loads the map now instead of on first use
+	void load(Connection con) throws SQLException {
+		if (map == null) loadMap(con);
+	}
+
+	// the objects of a schema of the batch, taken from a CatalogSnapshot instead of loaded, before loading
+	void reuse(Schema schema, Iterable<T> dbos) {
+		Map<String,T> byName = new HashMap<String,T>();
+		for (T dbo : dbos) {
+			byName.put(dbo.getName(), dbo);
+		}
+		reused.put(schema.getName(), byName);
+		toLoad.remove(schema.getOid());
+	}
+
 	protected void loadMap(Connection con) throws SQLException {
-		map = new HashMap<String,Map<String,T>>();
+		map = new HashMap<String,Map<String,T>>(reused);
+		if (toLoad.isEmpty()) return;
+		Object event = Events.beginCatalog();
+		int count = 0;
 		PreparedStatement stmt = null;
 		try {
 			stmt = getAllStatement(con);
 			ZipBackup.debug("loading map in " + CachingDBOFactory.this.getClass());
 			ResultSet rs = stmt.executeQuery();
 			while (rs.next()) {
-				Schema schema = schemaFactory.getFromCurrentBatch(rs.getInt("schema_oid"));
+				Schema schema = toLoad.get(rs.getInt("schema_oid"));
 				if (schema == null) continue;
 				Map<String,T> dbos = map.get(schema.getName());
 				if (dbos == null) {
@@ -56,13 +80,25 @@ public abstract class CachingDBOFactory<T extends DbBackupObject> implements DBO
 				}
 				T dbo = newDbBackupObject(con, rs, schema);
 				dbos.put(dbo.getName(), dbo);
+				count++;
 			}
 			rs.close();
 		} finally {
 			if (stmt != null) stmt.close();
 		}
+		Events.commitCatalog(event, "loadMap " + getClass().getSimpleName(), count);
+	}
+
+	// the oids of the schemas to be loaded, for the = ANY (?) parameter of getAllStatement
+	protected final Array getSchemaOids(Connection con) throws SQLException {
+		return con.createArrayOf("int4", toLoad.keySet().toArray(new Integer[toLoad.size()]));
+	}
+
+	protected final boolean hasSchemasToLoad() {
+		return !toLoad.isEmpty();
 	}
 
+	// for the schemas to be loaded only
 	protected abstract PreparedStatement getAllStatement(Connection con) throws SQLException;
 
 	protected abstract T newDbBackupObject(Connection con, ResultSet rs, Schema schema) throws SQLException;
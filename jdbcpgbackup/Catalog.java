@@ -0,0 +1,171 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// the caching factories of one batch of schemas in a full dump
+final class Catalog {
+
+	final Table.CachingTableFactory tableFactory;
+	final View.CachingViewFactory viewFactory;
+	final Sequence.CachingSequenceFactory sequenceFactory;
+	final Index.CachingIndexFactory indexFactory;
+	final Constraint.CachingConstraintFactory constraintFactory;
+	private final Map<Integer,Schema> batch;
+	private final CatalogSnapshot snapshot;
+	private Map<Integer,String> versions = null;
+
+	// for the current batch of schemaFactory
+	Catalog(Schema.CachingSchemaFactory schemaFactory) {
+		this(schemaFactory, null);
+	}
+
+	// taking the schemas unchanged since the snapshot from it, if not null
+	Catalog(Schema.CachingSchemaFactory schemaFactory, CatalogSnapshot snapshot) {
+		this.snapshot = snapshot;
+		batch = schemaFactory.getCurrentBatch();
+		tableFactory = new Table.CachingTableFactory(schemaFactory);
+		viewFactory = new View.CachingViewFactory(schemaFactory);
+		sequenceFactory = new Sequence.CachingSequenceFactory(schemaFactory);
+		indexFactory = new Index.CachingIndexFactory(schemaFactory, tableFactory);
+		constraintFactory = new Constraint.CachingConstraintFactory(schemaFactory, tableFactory);
+	}
+
+	// takes the schemas of the batch unchanged since the snapshot from it, before loading the others
+	void reuse(Connection con) throws SQLException {
+		if (snapshot == null || versions != null) return;
+		ZipBackup.timerStart("catalog snapshot");
+		versions = CatalogSnapshot.getVersions(con, batch.keySet());
+		int reused = 0;
+		try {
+			for (Schema schema : batch.values()) {
+				if (snapshot.read(schema, versions.get(schema.getOid()), this)) reused++;
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		ZipBackup.debug("reused the catalog of " + reused + " of " + batch.size() + " schemas");
+		ZipBackup.timerEnd("catalog snapshot");
+	}
+
+	// adds the schemas of the batch, once dumped, to the new snapshot
+	void save(Connection con) throws SQLException, IOException {
+		if (snapshot == null) return;
+		for (Schema schema : batch.values()) {
+			snapshot.write(schema, versions.get(schema.getOid()), tableFactory.getTablesByOid(schema),
+					viewFactory.getDbBackupObjects(con, schema), indexFactory.getDbBackupObjects(con, schema),
+					constraintFactory.getDbBackupObjects(con, schema));
+		}
+	}
+
+	private interface Step {
+		void run(Connection con) throws SQLException;
+	}
+
+	/*
+	 * Loads everything the dump of the batch will ask for, with each catalog query run
+	 * on the executor on a connection of its own, throttled like the given one. Views and sequences are loaded together with
+	 * the tables, then columns, sizes, indexes and constraints, which need the table
+	 * oids, all at the same time. Connections are reused between queries and closed
+	 * once all are done. With a snapshot, the versions of the schemas are checked first,
+	 * and only the schemas that have changed are loaded.
+	 */
+	void load(String jdbcUrl, Connection like, ExecutorService executor) throws IOException, SQLException {
+		BlockingQueue<Connection> idle = new LinkedBlockingQueue<Connection>();
+		List<Future<Void>> steps = new ArrayList<Future<Void>>();
+		try {
+			if (snapshot != null) {
+				Futures.get(submit(new Step() {
+					public void run(Connection con) throws SQLException {
+						reuse(con);
+					}
+				}, jdbcUrl, like, idle, executor));
+			}
+			Future<Void> tables = submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					tableFactory.loadTables(con);
+				}
+			}, jdbcUrl, like, idle, executor);
+			steps.add(tables);
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					viewFactory.load(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					sequenceFactory.load(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			Futures.get(tables);
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					tableFactory.loadColumns(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					tableFactory.loadSizes(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					indexFactory.load(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			steps.add(submit(new Step() {
+				public void run(Connection con) throws SQLException {
+					constraintFactory.load(con);
+				}
+			}, jdbcUrl, like, idle, executor));
+			for (Future<Void> step : steps) {
+				Futures.get(step);
+			}
+		} finally {
+			for (Future<Void> step : steps) { // none may still be using a connection when they are closed
+				try {
+					step.get();
+				} catch (Exception ignore) {}
+			}
+			for (Connection con : idle) {
+				try {
+					con.close();
+				} catch (SQLException ignore) {}
+			}
+		}
+	}
+
+	private static Future<Void> submit(final Step step, final String jdbcUrl, final Connection like,
+			final BlockingQueue<Connection> idle, ExecutorService executor) {
+		return executor.submit(new Callable<Void>() {
+			public Void call() throws SQLException {
+				Connection con = idle.poll();
+				boolean isNew = con == null;
+				if (isNew) con = Throttle.wrapLike(like, DriverManager.getConnection(jdbcUrl));
+				try {
+					if (isNew) {
+						con.setReadOnly(true);
+						con.setAutoCommit(true);
+					}
+					step.run(con);
+				} finally {
+					idle.add(con); // closed by load once all steps are done
+				}
+				return null;
+			}
+		});
+	}
+
+}
@@ -0,0 +1,264 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The catalog of a full dump saved to a local file, so that the next full dump of the
+ * same database only loads the tables, columns, views, indexes and constraints of the
+ * schemas that have changed since, and takes those of the others from the file. A
+ * schema has changed if the oid or xmin of any of its rows in pg_class, pg_attribute,
+ * pg_attrdef, pg_index, pg_constraint or pg_rewrite has, as each change to a definition
+ * writes a new version of one of them. Sequences, with their current values, and table
+ * sizes are always loaded. A definition that depends on an object of another schema,
+ * such as a view on a table of another schema, is not reloaded when only the other
+ * schema changes.
+ *
+ * The file has a record for each schema, then an index with the oid, name, version and
+ * position of each record, then the position of the index, so that only the index is
+ * kept in memory and each record is read when its batch is loaded. The new snapshot is
+ * written to another file as the dump goes, and replaces the old one once it is done.
+ */
+final class CatalogSnapshot {
+
+	private static final String MAGIC = "jdbcpgbackup catalog 2";
+	private static final String EMPTY = "0:0"; // the version of a schema with nothing in it
+
+	private static final class Entry {
+
+		private final int oid;
+		private final String name;
+		private final String version;
+		private final long position;
+
+		private Entry(int oid, String name, String version, long position) {
+			this.oid = oid;
+			this.name = name;
+			this.version = version;
+			this.position = position;
+		}
+
+	}
+
+	private final File file;
+	private final File newFile;
+	private RandomAccessFile old = null; // null if there is no usable snapshot
+	private final Map<Integer,Entry> index = new HashMap<Integer,Entry>();
+	private DataOutputStream out;
+	private long position = 0;
+	private final List<Entry> newIndex = new ArrayList<Entry>();
+
+	CatalogSnapshot(File file) throws IOException {
+		this.file = file;
+		this.newFile = new File(file.getPath() + ".new");
+		if (file.isFile()) {
+			try {
+				open();
+			} catch (IOException e) { // the catalog is then loaded in full, and the snapshot written again
+				ZipBackup.debug("ignoring catalog snapshot " + file + ": " + e.getMessage());
+				if (old != null) old.close();
+				old = null;
+				index.clear();
+			}
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), 1 << 16));
+		out.writeUTF(MAGIC);
+		position = out.size();
+	}
+
+	private void open() throws IOException {
+		old = new RandomAccessFile(file, "r");
+		if (!MAGIC.equals(old.readUTF())) throw new IOException("not a catalog snapshot");
+		old.seek(old.length() - 8);
+		old.seek(old.readLong());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(old.getChannel())));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			Entry entry = new Entry(in.readInt(), readString(in), readString(in), in.readLong());
+			index.put(entry.oid, entry);
+		}
+	}
+
+	/*
+	 * The version of each schema, from the oid and xmin of all of its catalog rows, by
+	 * schema oid. The rows are only read, not the definitions built from them.
+	 */
+	static Map<Integer,String> getVersions(Connection con, Collection<Integer> schemaOids) throws SQLException {
+		Map<Integer,String> versions = new HashMap<Integer,String>();
+		Object event = Events.beginCatalog();
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(
+					"SELECT v.schema_oid, count(*) || ':' || sum(hashtext(v.row)::bigint) AS version FROM (" +
+							"SELECT c.relnamespace AS schema_oid, c.oid || ':' || c.xmin AS row " +
+							"FROM pg_class c WHERE c.relnamespace = ANY (?) " +
+							"UNION ALL SELECT c.relnamespace, a.attrelid || '.' || a.attnum || ':' || a.xmin " +
+							"FROM pg_attribute a JOIN pg_class c ON c.oid = a.attrelid WHERE c.relnamespace = ANY (?) " +
+							"UNION ALL SELECT c.relnamespace, d.oid || ':' || d.xmin " +
+							"FROM pg_attrdef d JOIN pg_class c ON c.oid = d.adrelid WHERE c.relnamespace = ANY (?) " +
+							"UNION ALL SELECT c.relnamespace, x.indexrelid || ':' || x.xmin " +
+							"FROM pg_index x JOIN pg_class c ON c.oid = x.indexrelid WHERE c.relnamespace = ANY (?) " +
+							"UNION ALL SELECT o.connamespace, o.oid || ':' || o.xmin " +
+							"FROM pg_constraint o WHERE o.connamespace = ANY (?) " +
+							"UNION ALL SELECT c.relnamespace, r.oid || ':' || r.xmin " +
+							"FROM pg_rewrite r JOIN pg_class c ON c.oid = r.ev_class WHERE c.relnamespace = ANY (?)" +
+					") v GROUP BY v.schema_oid");
+			for (int i = 1; i <= 6; i++) {
+				stmt.setArray(i, con.createArrayOf("int4", schemaOids.toArray(new Integer[schemaOids.size()])));
+			}
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				versions.put(rs.getInt("schema_oid"), rs.getString("version"));
+			}
+			rs.close();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+		for (Integer oid : schemaOids) {
+			if (!versions.containsKey(oid)) versions.put(oid, EMPTY);
+		}
+		Events.commitCatalog(event, "catalog versions", versions.size());
+		return versions;
+	}
+
+	// gives the catalog the objects of the schema, if it has not changed since the snapshot
+	synchronized boolean read(Schema schema, String version, Catalog catalog) throws IOException {
+		Entry entry = index.get(schema.getOid());
+		if (entry == null || !entry.name.equals(schema.getName()) || !entry.version.equals(version)) return false;
+		old.seek(entry.position);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(old.getChannel())));
+		Map<Integer,Table> tables = new HashMap<Integer,Table>();
+		for (int i = in.readInt(); i > 0; i--) {
+			int oid = in.readInt();
+			tables.put(oid, Table.read(in, schema));
+		}
+		List<View> views = new ArrayList<View>();
+		for (int i = in.readInt(); i > 0; i--) {
+			views.add(View.read(in, schema));
+		}
+		List<Index> indexes = new ArrayList<Index>();
+		for (int i = in.readInt(); i > 0; i--) {
+			indexes.add(Index.read(in, schema));
+		}
+		List<Constraint> constraints = new ArrayList<Constraint>();
+		for (int i = in.readInt(); i > 0; i--) {
+			constraints.add(Constraint.read(in, schema));
+		}
+		catalog.tableFactory.reuse(schema, tables);
+		catalog.viewFactory.reuse(schema, views);
+		catalog.indexFactory.reuse(schema, indexes);
+		catalog.constraintFactory.reuse(schema, constraints);
+		return true;
+	}
+
+	// adds the schema, as loaded, to the new snapshot
+	synchronized void write(Schema schema, String version, Map<Integer,Table> tables, Iterable<View> views,
+			Iterable<Index> indexes, Iterable<Constraint> constraints) throws IOException {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream record = new DataOutputStream(buf);
+		record.writeInt(tables.size());
+		for (Map.Entry<Integer,Table> table : tables.entrySet()) {
+			record.writeInt(table.getKey());
+			table.getValue().write(record);
+		}
+		List<View> viewList = new ArrayList<View>();
+		for (View view : views) {
+			viewList.add(view);
+		}
+		record.writeInt(viewList.size());
+		for (View view : viewList) {
+			view.write(record);
+		}
+		List<Index> indexList = new ArrayList<Index>();
+		for (Index index : indexes) {
+			indexList.add(index);
+		}
+		record.writeInt(indexList.size());
+		for (Index index : indexList) {
+			index.write(record);
+		}
+		List<Constraint> constraintList = new ArrayList<Constraint>();
+		for (Constraint constraint : constraints) {
+			constraintList.add(constraint);
+		}
+		record.writeInt(constraintList.size());
+		for (Constraint constraint : constraintList) {
+			constraint.write(record);
+		}
+		record.close();
+		newIndex.add(new Entry(schema.getOid(), schema.getName(), version, position));
+		buf.writeTo(out);
+		position += buf.size();
+	}
+
+	// replaces the old snapshot with the new one, once all schemas have been written
+	synchronized void commit() throws IOException {
+		out.writeInt(newIndex.size());
+		for (Entry entry : newIndex) {
+			out.writeInt(entry.oid);
+			writeString(out, entry.name);
+			writeString(out, entry.version);
+			out.writeLong(entry.position);
+		}
+		out.writeLong(position);
+		out.close();
+		out = null;
+		if (old != null) old.close();
+		old = null;
+		if (file.exists() && !file.delete()) throw new IOException("failed to replace " + file);
+		if (!newFile.renameTo(file)) throw new IOException("failed to rename " + newFile + " to " + file);
+	}
+
+	// without replacing the old snapshot, unless committed
+	synchronized void close() {
+		try {
+			if (old != null) old.close();
+		} catch (IOException ignore) {}
+		old = null;
+		if (out == null) return;
+		try {
+			out.close();
+		} catch (IOException ignore) {}
+		out = null;
+		newFile.delete();
+	}
+
+	// also null, and longer than writeUTF allows
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+}
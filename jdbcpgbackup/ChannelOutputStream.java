@@ -0,0 +1,152 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Writes to a channel on a background thread, with two large direct buffers: one
+ * being filled by the caller while the other is written out, so that the zip writer
+ * only waits for the disk (or the pipe on stdout) when both are full. For a file,
+ * the sync interval decides when the data is forced to the disk.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+	static final long SYNC_NEVER = -1; // left to the operating system
+	static final long SYNC_ON_CLOSE = 0;
+
+	private static final int BUFFER_SIZE = 4 << 20;
+
+	private final WritableByteChannel channel;
+	private final long syncInterval;
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<ByteBuffer>(2);
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<ByteBuffer>(3);
+	private final ByteBuffer end = ByteBuffer.allocate(0);
+	private final Thread thread;
+	private volatile IOException error = null;
+	private ByteBuffer current = null; // being filled by the caller
+	private boolean closed = false;
+
+	/*
+	 * syncInterval is SYNC_NEVER, SYNC_ON_CLOSE, or a number of bytes after each of
+	 * which the file is also forced to the disk; it is ignored if channel is not a
+	 * FileChannel.
+	 */
+	ChannelOutputStream(WritableByteChannel channel, long syncInterval) {
+		this.channel = channel;
+		this.syncInterval = channel instanceof FileChannel ? syncInterval : SYNC_NEVER;
+		free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+		thread = new Thread("channel-writer") {
+			@Override
+			public void run() {
+				long unsynced = 0;
+				try {
+					ByteBuffer buf;
+					while ((buf = full.take()) != end) {
+						try {
+							if (error == null) { // otherwise keep returning the buffers, the caller will see the error
+								while (buf.hasRemaining()) {
+									unsynced += channel.write(buf);
+								}
+								if (syncInterval > 0 && unsynced >= syncInterval) {
+									((FileChannel)channel).force(false);
+									unsynced = 0;
+								}
+							}
+						} catch (IOException e) {
+							error = e;
+						} finally {
+							buf.clear();
+							free.add(buf);
+						}
+					}
+				} catch (InterruptedException ignore) {}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (current == null) current = take();
+		current.put((byte)b);
+		if (!current.hasRemaining()) send();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (current == null) current = take();
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			if (!current.hasRemaining()) send();
+		}
+	}
+
+	// hands off what has been written so far, without waiting for it to be written out
+	@Override
+	public void flush() throws IOException {
+		if (current != null && current.position() > 0) send();
+	}
+
+	// waits until everything is written, and synced unless the interval is SYNC_NEVER
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			flush();
+		} finally {
+			try {
+				full.put(end);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while closing output");
+			} finally {
+				try {
+					if (error == null && syncInterval >= SYNC_ON_CLOSE) ((FileChannel)channel).force(true);
+				} finally {
+					channel.close();
+				}
+			}
+		}
+		checkError();
+	}
+
+	private void send() throws IOException {
+		checkError();
+		current.flip();
+		try {
+			full.put(current);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing output");
+		} finally {
+			current = null;
+		}
+	}
+
+	private ByteBuffer take() throws IOException {
+		checkError();
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing output");
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) throw new IOException("error writing output: " + error.getMessage(), error);
+	}
+
+}
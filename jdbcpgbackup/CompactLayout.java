@@ -0,0 +1,230 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Archive layout with a few entries per schema instead of one per file and table,
+ * for databases with very many small schemas. There are no directory entries, all
+ * of the schema's sql is in a single schema.ddl entry, in sections each starting
+ * with a "--- <file name>" line, written before the table data, and the tables
+ * smaller than a threshold are packed together into data.000000.pack,
+ * data.000001.pack, ... entries. A pack starts with a table of contents: the number
+ * of tables, then the name and data length of each, followed by the data of each
+ * table in the same order. Larger tables are stored as usual under tables/.
+ */
+final class CompactLayout {
+
+	static final String DDL = "schema.ddl";
+	private static final String SECTION = "--- ";
+	private static final String PACK_PREFIX = "data.";
+	private static final String PACK_SUFFIX = ".pack";
+	static final int PACK_SIZE = 16 << 20; // a pack is written once its tables take this much
+
+	static boolean isDdl(String entryName) {
+		return entryName.endsWith("/" + DDL);
+	}
+
+	static boolean isPack(String entryName) {
+		int i = entryName.lastIndexOf('/');
+		return entryName.startsWith(PACK_PREFIX, i + 1) && entryName.endsWith(PACK_SUFFIX);
+	}
+
+	static void putDdl(ZipOutputStream zos, String schemaRoot, Map<String,String> sqlByFile) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		for (Map.Entry<String,String> file : sqlByFile.entrySet()) {
+			buf.append(SECTION).append(file.getKey()).append("\n");
+			buf.append(file.getValue());
+		}
+		zos.putNextEntry(new ZipEntry(schemaRoot + DDL));
+		zos.write(buf.toString().getBytes());
+	}
+
+	// file name to sql lines, in the order written; does not close the input stream
+	static Map<String,List<String>> parseDdl(InputStream is) throws IOException {
+		Map<String,List<String>> sqlByFile = new LinkedHashMap<String,List<String>>();
+		List<String> section = null;
+		for (String line : DdlTemplates.readLines(is)) {
+			if (line.startsWith(SECTION)) {
+				section = new ArrayList<String>();
+				sqlByFile.put(line.substring(SECTION.length()), section);
+			} else if (section != null) {
+				section.add(line);
+			}
+		}
+		return sqlByFile;
+	}
+
+	// collects the COPY data of the small tables of one schema into pack entries
+	static final class Packer {
+
+		private final ZipOutputStream zos;
+		private final String schemaRoot;
+		private final int threshold;
+		private final List<String> names = new ArrayList<String>();
+		private final List<Integer> lengths = new ArrayList<Integer>();
+		private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+		private int seq = 0;
+
+		Packer(ZipOutputStream zos, String schemaRoot, int threshold) {
+			this.zos = zos;
+			this.schemaRoot = schemaRoot;
+			this.threshold = threshold;
+		}
+
+		/*
+		 * Packs the table if its data turns out to be smaller than the threshold,
+		 * otherwise writes it as its own entry, tableEntry.
+		 */
+		void dump(Table table, Connection con, String tableEntry) throws SQLException, IOException {
+			Spill spill = new Spill(tableEntry);
+			if (!table.isEmpty()) table.dump(con, spill); // no COPY for empty tables
+			if (spill.buf == null) return; // written as a separate entry
+			names.add(table.getName());
+			lengths.add(spill.buf.size());
+			spill.buf.writeTo(data);
+			if (data.size() >= PACK_SIZE) flush();
+		}
+
+		// writes the last pack, if any
+		void finish() throws IOException {
+			if (!names.isEmpty()) flush();
+		}
+
+		private void flush() throws IOException {
+			zos.putNextEntry(new ZipEntry(schemaRoot + PACK_PREFIX + String.format("%06d", seq++) + PACK_SUFFIX));
+			DataOutputStream dos = new DataOutputStream(zos);
+			dos.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				dos.writeUTF(names.get(i));
+				dos.writeLong(lengths.get(i));
+			}
+			dos.flush();
+			data.writeTo(zos);
+			names.clear();
+			lengths.clear();
+			data.reset();
+		}
+
+		// buffers up to the threshold, then switches to a separate zip entry
+		private final class Spill extends OutputStream {
+
+			private final String entryName;
+			private ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+			private Spill(String entryName) {
+				this.entryName = entryName;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] {(byte)b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if (buf != null && buf.size() + len >= threshold) {
+					zos.putNextEntry(new ZipEntry(entryName));
+					buf.writeTo(zos);
+					buf = null;
+				}
+				if (buf != null) buf.write(b, off, len);
+				else zos.write(b, off, len);
+			}
+
+		}
+
+	}
+
+	interface TableConsumer {
+		void restoreTable(String tableName, InputStream is) throws IOException, SQLException;
+	}
+
+	/*
+	 * Reads a pack entry, passing the data of each table to the consumer as a stream
+	 * limited to that table. Does not close the input stream.
+	 */
+	static void readPack(InputStream is, TableConsumer consumer) throws IOException, SQLException {
+		DataInputStream dis = new DataInputStream(is);
+		int n = dis.readInt();
+		List<String> names = new ArrayList<String>(n);
+		List<Long> lengths = new ArrayList<Long>(n);
+		for (int i = 0; i < n; i++) {
+			names.add(dis.readUTF());
+			lengths.add(dis.readLong());
+		}
+		for (int i = 0; i < n; i++) {
+			Limited table = new Limited(is, lengths.get(i));
+			consumer.restoreTable(names.get(i), table);
+			table.skipRest();
+		}
+	}
+
+	private static final class Limited extends FilterInputStream {
+
+		private long remaining;
+
+		private Limited(InputStream in, long length) {
+			super(in);
+			remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) return -1;
+			int b = in.read();
+			if (b != -1) remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) return -1;
+			int n = in.read(b, off, (int)Math.min(len, remaining));
+			if (n > 0) remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(Math.min(n, remaining));
+			remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int)Math.min(in.available(), remaining);
+		}
+
+		@Override
+		public boolean markSupported() {
+			return false;
+		}
+
+		@Override
+		public void close() {}
+
+		private void skipRest() throws IOException {
+			byte[] b = new byte[1 << 16];
+			while (read(b, 0, b.length) != -1) {}
+		}
+
+	}
+
+}
@@ -2,11 +2,16 @@
 
 package jdbcpgbackup;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 final class Constraint extends DbBackupObject {
@@ -79,11 +84,13 @@ final class Constraint extends DbBackupObject {
 
 		@Override
 		protected PreparedStatement getAllStatement(Connection con) throws SQLException {
-			return con.prepareStatement(
+			PreparedStatement stmt = con.prepareStatement(
 					"SELECT c.oid, c.conname, c.conrelid AS table_oid, " +
 							"pg_get_constraintdef(c.oid) AS constraintdef, " +
 							"c.connamespace AS schema_oid, c.contype " +
-					"FROM pg_constraint c");
+					"FROM pg_constraint c WHERE c.connamespace = ANY (?)");
+			stmt.setArray(1, getSchemaOids(con));
+			return stmt;
 		}
 
 		@Override
@@ -93,18 +100,10 @@ final class Constraint extends DbBackupObject {
 					table.getOwner(), rs.getString("constraintdef"), rs.getString("contype").charAt(0));
 		}
 
-		// get the primary key constraints before the rest
+		// in the order they can be created in, see sort
 		@Override
 		public final Iterable<Constraint> getDbBackupObjects(Connection con, Schema schema) throws SQLException {
-			Iterable<Constraint> constraints = super.getDbBackupObjects(con, schema);
-			List<Constraint> pklist = new ArrayList<Constraint>();
-			List<Constraint> fklist = new ArrayList<Constraint>();
-			for (Constraint constraint : constraints) {
-				if (constraint.type == 'p') pklist.add(constraint);
-				else fklist.add(constraint);
-			}
-			pklist.addAll(fklist);
-			return pklist;
+			return sort(super.getDbBackupObjects(con, schema));
 		}
 
 	}
@@ -120,6 +119,47 @@ final class Constraint extends DbBackupObject {
 		this.type = type;
 	}
 
+	// for a CatalogSnapshot
+	void write(DataOutputStream out) throws IOException {
+		CatalogSnapshot.writeString(out, name);
+		CatalogSnapshot.writeString(out, tableName);
+		CatalogSnapshot.writeString(out, owner);
+		CatalogSnapshot.writeString(out, definition);
+		out.writeChar(type);
+	}
+
+	static Constraint read(DataInputStream in, Schema schema) throws IOException {
+		return new Constraint(CatalogSnapshot.readString(in), schema, CatalogSnapshot.readString(in),
+				CatalogSnapshot.readString(in), CatalogSnapshot.readString(in), in.readChar());
+	}
+
+	/*
+	 * Primary keys, then unique and exclusion constraints, then checks, then foreign
+	 * keys, which may reference any of the keys before them, each kind by name.
+	 */
+	static List<Constraint> sort(Iterable<Constraint> constraints) {
+		List<Constraint> sorted = new ArrayList<Constraint>();
+		for (Constraint constraint : constraints) {
+			sorted.add(constraint);
+		}
+		Collections.sort(sorted, new Comparator<Constraint>() {
+			public int compare(Constraint a, Constraint b) {
+				int diff = a.getRank() - b.getRank();
+				return diff != 0 ? diff : a.getName().compareTo(b.getName());
+			}
+		});
+		return sorted;
+	}
+
+	private int getRank() {
+		switch (type) {
+		case 'p': return 0;
+		case 'u': case 'x': return 1;
+		case 'f': return 3;
+		default: return 2;
+		}
+	}
+
 	@Override
 	protected StringBuilder appendCreateSql(StringBuilder buf) {
 		buf.append("ALTER TABLE ");
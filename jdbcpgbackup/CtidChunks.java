@@ -0,0 +1,165 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Dumps a huge table in ctid (heap block) ranges, COPYing several ranges at the same
+ * time on separate connections. The workers import the snapshot of the dump when it
+ * runs in a transaction, otherwise that of a transaction opened for the table alone,
+ * so the result is the same as a single COPY. Each range is a complete binary COPY
+ * stream, gzipped by its worker and stored uncompressed as entry
+ * <table>.000000.copy.gz, <table>.000001.copy.gz, ... Restore loads the ranges in
+ * order with one COPY each. Only used from PostgreSQL 14, before which a ctid range
+ * condition does not limit the scan, so each worker would read the whole table.
+ */
+final class CtidChunks {
+
+	static final long CHUNK_SIZE = 64L << 20; // bytes of heap per range
+	private static final String SUFFIX = ".copy.gz";
+
+	static boolean isChunk(String entryName) {
+		return entryName.endsWith(SUFFIX);
+	}
+
+	static String chunkName(String entryName, int seq) {
+		return entryName + "." + String.format("%06d", seq) + SUFFIX;
+	}
+
+	static int parseSeq(String entryName) {
+		String s = entryName.substring(0, entryName.length() - SUFFIX.length());
+		return Integer.parseInt(s.substring(s.lastIndexOf('.') + 1));
+	}
+
+	// whether ranges can be scanned without reading the whole table
+	static boolean isSupported(Connection con) throws SQLException {
+		return con.getMetaData().getDatabaseMajorVersion() >= 14;
+	}
+
+	static void dump(final Table table, Connection con, String jdbcUrl, int workers,
+			ZipOutputStream zos, String entryName) throws SQLException, IOException {
+		Connection coordinator = null; // holds the snapshot of an autocommit dump until the workers are done
+		try {
+			if (con.getAutoCommit()) {
+				coordinator = Throttle.wrapLike(con, DriverManager.getConnection(jdbcUrl));
+				coordinator.setReadOnly(true);
+				coordinator.setAutoCommit(false);
+				coordinator.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			}
+			dump(table, coordinator == null ? con : coordinator, jdbcUrl, workers, zos, entryName,
+					exportSnapshot(coordinator == null ? con : coordinator));
+		} finally {
+			if (coordinator != null) {
+				try {
+					coordinator.rollback();
+					coordinator.close();
+				} catch (SQLException ignore) {}
+			}
+		}
+	}
+
+	private static void dump(final Table table, Connection con, String jdbcUrl, int workers,
+			ZipOutputStream zos, String entryName, String snapshot) throws SQLException, IOException {
+		long blocks = table.getBlockCount(con);
+		long bytesPerBlock = Math.max(1, table.getSize() / Math.max(1, blocks)); // toast included
+		long blocksPerChunk = Math.max(1, CHUNK_SIZE / bytesPerBlock);
+		int chunks = (int)Math.max(1, (blocks + blocksPerChunk - 1) / blocksPerChunk);
+		workers = Math.min(workers, chunks);
+		ZipBackup.debug("dumping " + table.getFullname() + " in " + chunks + " ctid ranges on " + workers + " connections");
+
+		final BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(workers);
+		List<Connection> opened = new ArrayList<Connection>();
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		try {
+			for (int i = 0; i < workers; i++) {
+				Connection worker = Throttle.wrapLike(con, DriverManager.getConnection(jdbcUrl));
+				opened.add(worker);
+				worker.setReadOnly(true);
+				worker.setAutoCommit(false);
+				worker.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				importSnapshot(worker, snapshot);
+				connections.add(worker);
+			}
+			Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+			int seq = 0;
+			for (int i = 0; i < chunks; i++) {
+				final long from = i * blocksPerChunk;
+				final long to = i == chunks - 1 ? -1 : from + blocksPerChunk; // last range is open ended
+				if (inFlight.size() >= workers * 2) {
+					byte[] data = Futures.get(inFlight.removeFirst());
+					ParallelGzip.putStoredEntry(zos, chunkName(entryName, seq++), data, ParallelGzip.crc(data));
+				}
+				inFlight.add(executor.submit(new Callable<byte[]>() {
+					public byte[] call() throws Exception {
+						Connection worker = connections.take();
+						try {
+							ByteArrayOutputStream bos = new ByteArrayOutputStream();
+							GZIPOutputStream gzos = new GZIPOutputStream(bos, 1 << 16);
+							table.dump(worker, gzos, from, to);
+							gzos.close();
+							return bos.toByteArray();
+						} finally {
+							connections.put(worker);
+						}
+					}
+				}));
+			}
+			while (!inFlight.isEmpty()) {
+				byte[] data = Futures.get(inFlight.removeFirst());
+				ParallelGzip.putStoredEntry(zos, chunkName(entryName, seq++), data, ParallelGzip.crc(data));
+			}
+		} finally {
+			executor.shutdownNow();
+			for (Connection worker : opened) {
+				try {
+					worker.close();
+				} catch (SQLException ignore) {}
+			}
+		}
+	}
+
+	static String exportSnapshot(Connection con) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement("SELECT pg_export_snapshot() AS snapshot");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			String snapshot = rs.getString("snapshot");
+			rs.close();
+			return snapshot;
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+	// must be the first statement in the transaction
+	static void importSnapshot(Connection con, String snapshot) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement("SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+			stmt.executeUpdate();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Copies schemas from one database to another without an intermediate backup file.
+ * The generated sql is executed directly on the target, in the same order as a dump
+ * followed by a restore: sequences, tables, table data, views, indexes, constraints.
+ * Table data is streamed from COPY OUT on the source to COPY IN on the target through
+ * a ring of in-memory buffers. Several schemas are copied at the same time, each on
+ * its own pair of connections; the source connections share the snapshot of the first
+ * one (PostgreSQL 9.2+), and each schema is committed on the target when it is done.
+ */
+public final class DbCopy {
+
+	private final String fromJdbcUrl;
+	private final String toJdbcUrl;
+
+	private final DBOFactory<Schema> schemaFactory = new Schema.SchemaFactory();
+	private final DBOFactory<View> viewFactory = new View.ViewFactory();
+	private final DBOFactory<Table> tableFactory = new Table.TableFactory();
+	private final DBOFactory<Sequence> sequenceFactory = new Sequence.SequenceFactory();
+	private final DBOFactory<Index> indexFactory = new Index.IndexFactory();
+	private final DBOFactory<Constraint> constraintFactory = new Constraint.ConstraintFactory();
+
+	private LoadProfile loadProfile = LoadProfile.DEFAULT;
+	private int parallelism = ZipBackup.DEFAULT_PARALLELISM;
+	private Throttle throttle = null;
+
+	public DbCopy(String fromJdbcUrl, String toJdbcUrl) {
+		this.fromJdbcUrl = fromJdbcUrl;
+		this.toJdbcUrl = toJdbcUrl;
+	}
+
+	// the target is given as [user[:password]@]hostname[:port][/database] in the "target" parameter
+	public DbCopy(Map<String,String> params) {
+		this(ZipBackup.buildJdbcUrl(params), ZipBackup.buildJdbcUrl(targetParams(params)));
+		setLoadProfile(LoadProfile.forName(params.get("profile")));
+		if (params.get("jobs") != null)
+			setParallelism(Integer.parseInt(params.get("jobs")));
+		setThrottle(ZipBackup.buildThrottle(params));
+	}
+
+	private static Map<String,String> targetParams(Map<String,String> params) {
+		String target = params.get("target");
+		if (target == null) throw new RuntimeException("target database parameters missing");
+		return ZipBackup.hostParams(params, target);
+	}
+
+	public void setLoadProfile(LoadProfile loadProfile) {
+		this.loadProfile = loadProfile;
+	}
+
+	// limits the load on the source server, null for no limits
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	// number of schemas copied at the same time
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) throw new RuntimeException("invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
+	}
+
+	public void copyAll(DataFilter dataFilter) {
+		copy(null, dataFilter);
+	}
+
+	/*
+	 * Copies each schema in the key set of schemaMap to the schema it maps to, or all
+	 * schemas if schemaMap is null. Existing target schemas keep their owner.
+	 */
+	public void copy(Map<String,String> schemaMap, DataFilter dataFilter) {
+		ZipBackup.debug("starting copy at " + new Date());
+		Connection con = null;
+		final BlockingQueue<Worker> idle = new ArrayBlockingQueue<Worker>(parallelism);
+		List<Worker> workers = new ArrayList<Worker>();
+		ExecutorService executor = null;
+		try {
+			con = DriverManager.getConnection(fromJdbcUrl);
+			if (throttle != null) {
+				con = throttle.wrap(con);
+				throttle.start(fromJdbcUrl);
+			}
+			con.setReadOnly(true);
+			con.setAutoCommit(false);
+			con.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+
+			ZipBackup.timerStart("schemas");
+			Map<Schema,String> schemas = new LinkedHashMap<Schema,String>();
+			if (schemaMap == null) {
+				for (Schema schema : schemaFactory.getDbBackupObjects(con, null)) {
+					schemas.put(schema, schema.getName());
+				}
+			} else {
+				for (Map.Entry<String,String> entry : schemaMap.entrySet()) {
+					Schema schema = schemaFactory.getDbBackupObject(con, entry.getKey(), null);
+					if (schema == null)
+						throw new RuntimeException("schema " + entry.getKey() + " not found in database");
+					schemas.put(schema, entry.getValue());
+				}
+			}
+			ZipBackup.setTotalCount(schemas.size());
+			ZipBackup.timerEnd("schemas");
+			ZipBackup.debug("restore profile: " + loadProfile);
+
+			int n = Math.max(1, Math.min(parallelism, schemas.size()));
+			if (n == 1) { // no snapshot to share, and the timings are kept
+				Worker worker = new Worker(con);
+				workers.add(worker);
+				for (Map.Entry<Schema,String> entry : schemas.entrySet()) {
+					copySchema(entry.getKey(), entry.getValue(), dataFilter, worker);
+				}
+			} else {
+				String snapshot = CtidChunks.exportSnapshot(con);
+				for (int i = 0; i < n; i++) {
+					Connection source = Throttle.wrapLike(con, DriverManager.getConnection(fromJdbcUrl));
+					Worker worker = new Worker(source);
+					workers.add(worker);
+					source.setReadOnly(true);
+					source.setAutoCommit(false);
+					source.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+					CtidChunks.importSnapshot(source, snapshot);
+					idle.add(worker);
+				}
+				executor = Executors.newFixedThreadPool(n);
+				final DataFilter filter = dataFilter;
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (final Map.Entry<Schema,String> entry : schemas.entrySet()) {
+					results.add(executor.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							Worker worker = idle.take();
+							try {
+								copySchema(entry.getKey(), entry.getValue(), filter, worker);
+							} finally {
+								idle.put(worker);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result : results) {
+					Futures.get(result);
+					ZipBackup.processedSchema();
+				}
+			}
+			for (Worker worker : workers) {
+				worker.finish();
+			}
+			ZipBackup.printTimings();
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			if (executor != null) executor.shutdownNow();
+			if (throttle != null) throttle.stop();
+			for (Worker worker : workers) {
+				worker.close();
+			}
+			try {
+				if (con != null) con.close();
+			} catch (SQLException ignore) {}
+		}
+		ZipBackup.debug("finished copy at " + new Date());
+	}
+
+	// a source connection and the target connection it copies to
+	private final class Worker {
+
+		private final Connection source;
+		private Session target = null;
+
+		private Worker(Connection source) {
+			this.source = source;
+		}
+
+		private Session target() throws SQLException {
+			if (target == null) {
+				Connection con = DriverManager.getConnection(toJdbcUrl);
+				con.setAutoCommit(false);
+				target = new Session(con);
+				loadProfile.beginRestore(con);
+			}
+			return target;
+		}
+
+		private void finish() throws SQLException {
+			if (target == null) return;
+			target.reset();
+			loadProfile.endRestore(target.con);
+			target.con.commit();
+		}
+
+		// after a failure, the settings tracked by the session were rolled back with it
+		private void discardTarget() {
+			try {
+				if (target != null) target.con.close();
+			} catch (SQLException ignore) {}
+			target = null;
+		}
+
+		private void close() {
+			discardTarget();
+			try {
+				source.close();
+			} catch (SQLException ignore) {}
+		}
+
+	}
+
+	private void copySchema(Schema schema, String toSchemaName, DataFilter dataFilter, Worker worker) {
+		Connection con = worker.source;
+		SchemaRestore schemaRestore = null;
+		try {
+			Session session = worker.target();
+			String toOwner = toSchemaName.equals(schema.getName()) ? schema.getOwner() : toSchemaName;
+			schemaRestore = new SchemaRestore(schema.getName(), toSchemaName, toOwner,
+					schemaFactory.getDbBackupObject(session.con, toSchemaName, null), schemaFactory, session, loadProfile);
+
+			ZipBackup.timerStart("sequences");
+			List<String> sequencesSql = getSql(sequenceFactory.getDbBackupObjects(con, schema), dataFilter);
+			ZipBackup.timerEnd("sequences");
+			schemaRestore.restoreSql("sequences.sql", sequencesSql);
+
+			List<Table> tables = new ArrayList<Table>();
+			for (Table table : tableFactory.getDbBackupObjects(con, schema)) {
+				tables.add(table);
+			}
+			schemaRestore.restoreSql("tables.sql", getSql(tables, dataFilter));
+
+			// grouped by owner, so that each role is set only once
+			Map<String,List<Table>> tablesByOwner = new LinkedHashMap<String,List<Table>>();
+			for (Table table : tables) {
+				if (!dataFilter.dumpData(schema.getName(), table.getName())) continue;
+				String owner = schemaRestore.getTableOwner(table.getName());
+				List<Table> ownerTables = tablesByOwner.get(owner);
+				if (ownerTables == null) {
+					ownerTables = new ArrayList<Table>();
+					tablesByOwner.put(owner, ownerTables);
+				}
+				ownerTables.add(table);
+			}
+			for (List<Table> ownerTables : tablesByOwner.values()) {
+				for (Table table : ownerTables) {
+					copyTable(table, con, schemaRestore);
+				}
+			}
+
+			ZipBackup.timerStart("views");
+			List<String> viewsSql = getSql(viewFactory.getDbBackupObjects(con, schema), dataFilter);
+			ZipBackup.timerEnd("views");
+			schemaRestore.restoreSql("views.sql", viewsSql);
+
+			ZipBackup.timerStart("indexes");
+			List<String> indexesSql = getSql(indexFactory.getDbBackupObjects(con, schema), dataFilter);
+			ZipBackup.timerEnd("indexes");
+			schemaRestore.restoreSql("indexes.sql", indexesSql);
+
+			ZipBackup.timerStart("constraints");
+			List<String> constraintsSql = getSql(constraintFactory.getDbBackupObjects(con, schema), dataFilter);
+			ZipBackup.timerEnd("constraints");
+			schemaRestore.restoreSql("constraints.sql", constraintsSql);
+
+			schemaRestore.finish();
+			session.reset(); // SET ROLE outlives the commit, the next schema starts as the session user
+			session.con.commit();
+		} catch (Exception e) {
+			worker.discardTarget();
+			throw new RuntimeException("error copying " + schema.getName() + " to " + toSchemaName, e);
+		}
+	}
+
+	// COPY OUT is read on another thread while this one sends the data with COPY IN
+	private static void copyTable(Table table, Connection con, SchemaRestore schemaRestore)
+			throws SQLException, IOException {
+		InputStream copyOut = table.copyOut(con);
+		try {
+			InputStream is = ReadAhead.of(copyOut);
+			try {
+				schemaRestore.restoreTable(table.getName(), is);
+			} finally {
+				is.close();
+			}
+		} finally {
+			copyOut.close();
+		}
+	}
+
+	// the generated sql split into lines, as restore reads it from the backup file
+	private static List<String> getSql(Iterable<? extends DbBackupObject> dbBackupObjects, DataFilter dataFilter)
+			throws IOException {
+		StringBuilder buf = new StringBuilder();
+		for (DbBackupObject o : dbBackupObjects) {
+			buf.append(o.getSql(dataFilter));
+		}
+		return DdlTemplates.readLines(new ByteArrayInputStream(buf.toString().getBytes()));
+	}
+
+}
@@ -0,0 +1,106 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Deduplicated DDL for databases with many schemas of identical structure. The
+ * tables.sql, views.sql, indexes.sql and constraints.sql of a schema are stored
+ * once per distinct content as templates/<sha1>.sql, written before the first
+ * schema using them, and the schema itself only gets a template entry listing the
+ * template for each file.
+ */
+final class DdlTemplates {
+
+	static final String ROOT = "templates/";
+	static final String REF = "template";
+	static final String[] FILES = {"tables.sql", "views.sql", "indexes.sql", "constraints.sql"};
+
+	private final Set<String> written = new HashSet<String>();
+
+	// writes the templates not yet in the zip file, then the schema's template entry
+	void put(ZipOutputStream zos, String zipRoot, String schemaRoot, Map<String,String> sqlByFile) throws IOException {
+		String ref = putTemplates(zos, zipRoot, sqlByFile);
+		zos.putNextEntry(new ZipEntry(schemaRoot + REF));
+		zos.write(ref.getBytes());
+	}
+
+	// writes the templates not yet in the zip file, returns the content of the schema's template entry
+	String putTemplates(ZipOutputStream zos, String zipRoot, Map<String,String> sqlByFile) throws IOException {
+		StringBuilder ref = new StringBuilder();
+		for (Map.Entry<String,String> file : sqlByFile.entrySet()) {
+			byte[] sql = file.getValue().getBytes();
+			String hash = hash(sql);
+			if (written.add(hash)) {
+				zos.putNextEntry(new ZipEntry(zipRoot + ROOT + hash + ".sql"));
+				zos.write(sql);
+			}
+			ref.append(file.getKey()).append(" ").append(hash).append("\n");
+		}
+		return ref.toString();
+	}
+
+	static String templateName(String zipRoot, String hash) {
+		return zipRoot + ROOT + hash + ".sql";
+	}
+
+	static boolean isTemplate(String zipRoot, String entryName) {
+		return entryName.startsWith(zipRoot + ROOT);
+	}
+
+	static String parseHash(String entryName) {
+		return entryName.substring(entryName.lastIndexOf('/') + 1, entryName.length() - ".sql".length());
+	}
+
+	// file name to template hash, in restore order; does not close the input stream
+	static Map<String,String> parseRef(InputStream is) throws IOException {
+		return parseRef(readLines(is));
+	}
+
+	static Map<String,String> parseRef(List<String> lines) {
+		Map<String,String> ref = new LinkedHashMap<String,String>();
+		for (String line : lines) {
+			int i = line.indexOf(' ');
+			ref.put(line.substring(0, i), line.substring(i + 1));
+		}
+		return ref;
+	}
+
+	// does not close the input stream
+	static List<String> readLines(InputStream is) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			lines.add(line);
+		}
+		return lines;
+	}
+
+	private static String hash(byte[] sql) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(sql);
+			StringBuilder buf = new StringBuilder();
+			for (byte b : digest) {
+				buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+}
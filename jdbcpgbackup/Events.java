@@ -0,0 +1,72 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Flight Recorder events for phases, table data and catalog queries. This class
+ * does not refer to jdk.jfr itself, so on a runtime without it all methods are
+ * no-ops. A begin method returns null if the event is not being recorded, and
+ * the matching commit method ignores a null event.
+ */
+final class Events {
+
+	private static final boolean AVAILABLE = isAvailable();
+
+	private static final ThreadLocal<String> schema = new ThreadLocal<String>();
+	private static final ThreadLocal<Map<String,Object>> phases = new ThreadLocal<Map<String,Object>>() {
+		@Override
+		protected Map<String,Object> initialValue() {
+			return new HashMap<String,Object>();
+		}
+	};
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (ClassNotFoundException e) {
+			return false;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	private Events() {}
+
+	// the schema the phases of this thread belong to, until the next call
+	static void schema(String name) {
+		if (AVAILABLE) schema.set(name);
+	}
+
+	static void phaseStart(String phase) {
+		if (!AVAILABLE) return;
+		Object event = JfrEvents.begin(new JfrEvents.PhaseEvent());
+		if (event != null) phases.get().put(phase, event);
+	}
+
+	static void phaseEnd(String phase) {
+		if (!AVAILABLE) return;
+		Object event = phases.get().remove(phase);
+		if (event != null) JfrEvents.commitPhase(event, phase, schema.get());
+	}
+
+	static Object beginTable() {
+		return AVAILABLE ? JfrEvents.begin(new JfrEvents.TableEvent()) : null;
+	}
+
+	static void commitTable(Object event, String operation, String table, long bytes, long rows) {
+		if (event != null) JfrEvents.commitTable(event, operation, table, bytes, rows);
+	}
+
+	static Object beginCatalog() {
+		return AVAILABLE ? JfrEvents.begin(new JfrEvents.CatalogEvent()) : null;
+	}
+
+	static void commitCatalog(Object event, String query, long count) {
+		if (event != null) JfrEvents.commitCatalog(event, query, count);
+	}
+
+}
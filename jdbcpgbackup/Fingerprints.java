@@ -0,0 +1,178 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Fingerprints of the schemas of a backup, stored as pg_backup/fingerprints by a dump
+ * with fingerprints, so that a differential restore can tell which schemas differ from
+ * those already in the target database without restoring them. Each schema has the
+ * SHA-1 of its definitions, without data, in a canonical order, and a value for each
+ * table and sequence whose data is dumped: for a table, its number of rows and the
+ * sum of a 64 bit hash of each row of its binary COPY data, which depends neither on
+ * the order of the rows nor on how the table is split into ranges dumped in parallel,
+ * for a sequence, the SHA-1 of its definition with its current value.
+ */
+final class Fingerprints {
+
+	static final String ENTRY = "fingerprints";
+
+	private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte)0377, '\r', '\n', 0};
+
+	// the rows of a table, added from the threads dumping it
+	static final class Rows {
+
+		private long rows = 0;
+		private long sum = 0;
+
+		// one message of binary COPY data, a row, possibly after the header, or the trailer
+		synchronized void add(byte[] row) {
+			int off = 0;
+			if (startsWithSignature(row)) {
+				off = SIGNATURE.length + 4; // and the flags
+				off += 4 + readInt(row, off); // the header extension
+			}
+			if (row.length - off == 2 && row[off] == (byte)0xff && row[off + 1] == (byte)0xff) return;
+			if (row.length == off) return;
+			rows++;
+			sum += hash(row, off, row.length);
+		}
+
+		@Override
+		public synchronized String toString() {
+			return rows + ":" + Long.toHexString(sum);
+		}
+
+		private static boolean startsWithSignature(byte[] row) {
+			if (row.length < SIGNATURE.length + 8) return false;
+			for (int i = 0; i < SIGNATURE.length; i++) {
+				if (row[i] != SIGNATURE[i]) return false;
+			}
+			return true;
+		}
+
+		private static int readInt(byte[] b, int off) {
+			return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+		}
+
+		// FNV-1a, mixed so that the sums of hashes of similar rows still differ
+		private static long hash(byte[] b, int from, int to) {
+			long h = 0xcbf29ce484222325L;
+			for (int i = from; i < to; i++) {
+				h ^= b[i] & 0xff;
+				h *= 0x100000001b3L;
+			}
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return h;
+		}
+
+	}
+
+	private final Map<String,String> ddl = new TreeMap<String,String>();
+	private final Map<String,Map<String,String>> data = new TreeMap<String,Map<String,String>>();
+
+	synchronized void put(String schema, String ddlSql, Map<String,String> values) {
+		ddl.put(schema, sha1(ddlSql));
+		data.put(schema, new TreeMap<String,String>(values));
+	}
+
+	synchronized boolean contains(String schema) {
+		return ddl.containsKey(schema);
+	}
+
+	synchronized boolean matchesDdl(String schema, String ddlSql) {
+		return sha1(ddlSql).equals(ddl.get(schema));
+	}
+
+	// the tables and sequences with a value in the fingerprint of the schema
+	synchronized Iterable<String> getNames(String schema) {
+		Map<String,String> values = data.get(schema);
+		if (values == null) return Collections.emptyList();
+		return Collections.unmodifiableSet(values.keySet());
+	}
+
+	synchronized boolean matchesData(String schema, Map<String,String> values) {
+		Map<String,String> expected = data.get(schema);
+		return expected != null && expected.equals(values);
+	}
+
+	// a line for the definitions of each schema, then one for each of its values
+	synchronized void write(OutputStream os) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		for (Map.Entry<String,String> schema : ddl.entrySet()) {
+			buf.append("ddl\t").append(schema.getKey()).append("\t").append(schema.getValue()).append("\n");
+			for (Map.Entry<String,String> value : data.get(schema.getKey()).entrySet()) {
+				buf.append("data\t").append(schema.getKey()).append("\t").append(value.getKey());
+				buf.append("\t").append(value.getValue()).append("\n");
+			}
+		}
+		os.write(buf.toString().getBytes("UTF-8"));
+	}
+
+	static Fingerprints read(InputStream is) throws IOException {
+		Fingerprints fingerprints = new Fingerprints();
+		List<String> lines = DdlTemplates.readLines(is);
+		for (String line : lines) {
+			if (line.length() == 0) continue;
+			String[] fields = line.split("\t", -1);
+			if (fields.length == 3 && "ddl".equals(fields[0])) {
+				fingerprints.ddl.put(fields[1], fields[2]);
+				fingerprints.data.put(fields[1], new TreeMap<String,String>());
+			} else if (fields.length == 4 && "data".equals(fields[0]) && fingerprints.data.containsKey(fields[1])) {
+				fingerprints.data.get(fields[1]).put(fields[2], fields[3]);
+			} else throw new IOException("invalid fingerprint line: " + line);
+		}
+		return fingerprints;
+	}
+
+	// the value of a table in the fingerprint, read with COPY OUT from con
+	static String tableValue(Table table, Connection con) throws SQLException, IOException {
+		Rows rows = new Rows();
+		if (!table.isEmpty()) {
+			table.setFingerprint(rows);
+			table.dump(con, new OutputStream() {
+				@Override
+				public void write(int b) {}
+
+				@Override
+				public void write(byte[] b, int off, int len) {}
+			});
+		}
+		return rows.toString();
+	}
+
+	static String sequenceValue(Sequence sequence) {
+		return sha1(sequence.getSql(DataFilter.ALL_DATA));
+	}
+
+	private static String sha1(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(s.getBytes("UTF-8"));
+			StringBuilder buf = new StringBuilder();
+			for (byte b : digest) {
+				buf.append(String.format("%02x", b & 0xff));
+			}
+			return buf.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+}
@@ -2,6 +2,9 @@
 
 package jdbcpgbackup;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -96,14 +99,16 @@ class Index extends DbBackupObject {
 
 		@Override
 		protected PreparedStatement getAllStatement(Connection con)	throws SQLException {
-			return con.prepareStatement(
+			PreparedStatement stmt = con.prepareStatement(
 					"SELECT x.indrelid AS table_oid, i.relname AS indexname, " +
 							"pg_get_indexdef(i.oid) AS indexdef, " +
 							"i.relnamespace AS schema_oid " +
 							"FROM pg_index x " +
 							"JOIN pg_class i ON i.oid = x.indexrelid " +
 							"WHERE i.relkind = 'i'::\"char\" " +
-					"AND NOT x.indisprimary ");
+					"AND NOT x.indisprimary AND i.relnamespace = ANY (?)");
+			stmt.setArray(1, getSchemaOids(con));
+			return stmt;
 		}
 
 		@Override
@@ -123,6 +128,18 @@ class Index extends DbBackupObject {
 		this.definition = definition;
 	}
 
+	// for a CatalogSnapshot
+	void write(DataOutputStream out) throws IOException {
+		CatalogSnapshot.writeString(out, name);
+		CatalogSnapshot.writeString(out, tableName);
+		CatalogSnapshot.writeString(out, definition);
+	}
+
+	static Index read(DataInputStream in, Schema schema) throws IOException {
+		return new Index(CatalogSnapshot.readString(in), schema, CatalogSnapshot.readString(in),
+				CatalogSnapshot.readString(in));
+	}
+
 	@Override
 	String getSql(DataFilter dataFilter) {
 		return definition.replace(" ON " + schema.getName() + ".", " ON ") + " ;\n";  // remove schema name
@@ -2,16 +2,24 @@
 
 package jdbcpgbackup;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public final class JdbcPgBackup {
 
 	public static final String USAGE =
-			"Usage: JdbcPgBackup -m dump|restore [-h hostname] [-p port] [-t (timing)] " +
+			"Usage: JdbcPgBackup -m dump|restore|clone|copy [-h hostname] [-p port] [-t (timing)] " +
 					"[-d database] [-U user] [-P password] [-f filename] [-o (schema only)] " +
-					"[-s schema[,schema...]] [-n schema[,schema...]] [-b batchsize]";
+					"[-s schema[,schema...]] [-n schema[,schema...]] [-b batchsize] [-l default|fast|fast-replica] [-z megabytes] [-c megabytes] [-j jobs] [-D (dedup ddl)] [-k kilobytes] " +
+					"[-r megabytes/s] [-q queries/s] [-a active backends] [-g lag seconds] " +
+					"[-T [user[:password]@]hostname[:port][/database] (copy target)] [-w port (metrics)] [-y none|close|megabytes (fsync)] " +
+					"[-v megabytes (volume size)] [-x schemas (per volume)] " +
+					"[-e [user[:password]@]hostname[:port][/database][,...] (replicas)] [-i filename (schema to server map)] [-F (fingerprints)] " +
+					"[-C filename (catalog snapshot)]";
 
 	private static Map<String,String> parseArgs(String[] args) {
 		Map<String,String> params = new HashMap<String,String>();
@@ -49,12 +57,69 @@ public final class JdbcPgBackup {
 				case 'b':
 					params.put("batch", args[++i]);
 					break;
+				case 'l':
+					params.put("profile", args[++i]);
+					break;
+				case 'z':
+					params.put("blockcompression", args[++i]);
+					break;
+				case 'c':
+					params.put("ctidchunks", args[++i]);
+					break;
+				case 'j':
+					params.put("jobs", args[++i]);
+					break;
 				case 't':
 					params.put("debug", "true");
 					break;
 				case 'o':
 					params.put("nodata", "true");
 					break;
+				case 'r':
+					params.put("maxrate", args[++i]);
+					break;
+				case 'q':
+					params.put("maxqueries", args[++i]);
+					break;
+				case 'a':
+					params.put("maxactive", args[++i]);
+					break;
+				case 'g':
+					params.put("maxlag", args[++i]);
+					break;
+				case 'k':
+					params.put("compact", args[++i]);
+					break;
+				case 'T':
+					params.put("target", args[++i]);
+					break;
+				case 'D':
+					params.put("templates", "true");
+					break;
+				case 'w':
+					params.put("metricsport", args[++i]);
+					break;
+				case 'y':
+					params.put("fsync", args[++i]);
+					break;
+				case 'v':
+					params.put("volumesize", args[++i]);
+					break;
+				case 'x':
+					params.put("volumeschemas", args[++i]);
+					break;
+				case 'e':
+					params.put("replicas", args[++i]);
+					break;
+				case 'i':
+					params.put("servermap", args[++i]);
+					break;
+				case 'F':
+					params.put("fingerprints", "true");
+					break;
+				case 'C':
+					params.put("catalog", args[++i]);
+					break;
 				default:
 					throw new RuntimeException("invalid parameter: " + args[i]);
 				}
@@ -87,7 +152,10 @@ public final class JdbcPgBackup {
 			String toSchemasParam = params.get("toschemas");
 			if (toSchemasParam != null) {
 				toSchemas = toSchemasParam.split(",");
-				if (schemas == null || schemas.length == 0 || schemas.length != toSchemas.length)
+				if ("clone".equals(params.get("mode"))) {
+					if (schemas == null || schemas.length != 1)
+						throw new RuntimeException("clone requires a single source schema (-s)");
+				} else if (schemas == null || schemas.length == 0 || schemas.length != toSchemas.length)
 					throw new RuntimeException("non-matching source schema (-s) and destination schema (-n) parameters");
 			}
 			String mode = params.get("mode");
@@ -95,6 +163,16 @@ public final class JdbcPgBackup {
 			if ("true".equals(params.get("debug")))
 				ZipBackup.setTimingOutput(System.err);
 
+			Progress.registerMBean();
+			String metricsPort = params.get("metricsport");
+			if (metricsPort != null) {
+				try {
+					Progress.startHttp(Integer.parseInt(metricsPort));
+				} catch (IOException e) {
+					throw new RuntimeException(e.getMessage(), e);
+				}
+			}
+
 			if ("dump".equals(mode)) {
 				boolean nodata = "true".equals(params.get("nodata"));
 				DataFilter dataFilter = nodata ? DataFilter.NO_DATA : DataFilter.ALL_DATA;
@@ -106,8 +184,31 @@ public final class JdbcPgBackup {
 					backup.dump(Arrays.asList(schemas), dataFilter);
 				}
 			} else if ("restore".equals(mode)) {
-				if (schemas == null) {
+				if (params.get("servermap") != null) {
+					Map<String,String> schemaServers;
+					try {
+						schemaServers = ZipBackup.readServerMap(new File(params.get("servermap")), params);
+					} catch (IOException e) {
+						throw new RuntimeException(e.getMessage(), e);
+					}
+					if (schemas != null) {
+						if (toSchemas != null)
+							throw new RuntimeException("restore to several servers does not rename schemas (-n)");
+						schemaServers.keySet().retainAll(Arrays.asList(schemas));
+					}
+					backup.restoreToServers(schemaServers);
+				} else if ("true".equals(params.get("fingerprints"))) {
+					if (schemas != null)
+						throw new RuntimeException("differential restore (-F) is for all schemas, without -s");
+					backup.restoreChanged();
+				} else if (schemas == null) {
 					backup.restoreAll();
+				} else if (params.get("filename") == null) { // single pass over stdin
+					Map<String,String> schemaMap = new LinkedHashMap<String,String>();
+					for (int i=0; i<schemas.length; i++) {
+						schemaMap.put(schemas[i], toSchemas == null ? schemas[i] : toSchemas[i]);
+					}
+					backup.restoreStream(System.in, schemaMap);
 				} else if (toSchemas == null) {
 					for (String schema : schemas) {
 						backup.restoreSchema(schema);
@@ -117,6 +218,22 @@ public final class JdbcPgBackup {
 						backup.restoreSchemaTo(schemas[i], toSchemas[i]);
 					}
 				}
+			} else if ("copy".equals(mode)) {
+				DbCopy copy = new DbCopy(params);
+				DataFilter dataFilter = "true".equals(params.get("nodata")) ? DataFilter.NO_DATA : DataFilter.ALL_DATA;
+				if (schemas == null) {
+					copy.copyAll(dataFilter);
+				} else {
+					Map<String,String> schemaMap = new LinkedHashMap<String,String>();
+					for (int i=0; i<schemas.length; i++) {
+						schemaMap.put(schemas[i], toSchemas == null ? schemas[i] : toSchemas[i]);
+					}
+					copy.copy(schemaMap, dataFilter);
+				}
+			} else if ("clone".equals(mode)) {
+				if (schemas == null || toSchemas == null)
+					throw new RuntimeException("clone requires a source schema (-s) and destination schemas (-n)");
+				backup.restoreSchemaToMany(schemas[0], Arrays.asList(toSchemas));
 			} else throw new RuntimeException("invalid mode: " + mode);
 		} catch (RuntimeException e) {
 			System.err.println("backup failed: " + e.getMessage());
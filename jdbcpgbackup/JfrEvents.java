@@ -0,0 +1,101 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+ * The Flight Recorder event types, only loaded through Events once jdk.jfr is known
+ * to be there. Stack traces are off, the fields are only names and counters, so
+ * whole production runs can be recorded.
+ */
+final class JfrEvents {
+
+	@Name("jdbcpgbackup.Phase")
+	@Label("Phase")
+	@Description("A timed step of a dump, restore or copy, as shown with -t")
+	@Category("jdbcpgbackup")
+	@StackTrace(false)
+	static final class PhaseEvent extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Schema")
+		String schema;
+	}
+
+	@Name("jdbcpgbackup.Table")
+	@Label("Table Data")
+	@Description("COPY of the data of one table, or of one ctid range of it")
+	@Category("jdbcpgbackup")
+	@StackTrace(false)
+	static final class TableEvent extends Event {
+		@Label("Operation")
+		String operation;
+
+		@Label("Table")
+		String table;
+
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+
+		@Label("Rows")
+		long rows;
+	}
+
+	@Name("jdbcpgbackup.Catalog")
+	@Label("Catalog Query")
+	@Description("Loading of catalog objects into a factory")
+	@Category("jdbcpgbackup")
+	@StackTrace(false)
+	static final class CatalogEvent extends Event {
+		@Label("Query")
+		String query;
+
+		@Label("Objects")
+		long count;
+	}
+
+	static Object begin(Event event) {
+		if (!event.isEnabled()) return null;
+		event.begin();
+		return event;
+	}
+
+	static void commitPhase(Object event, String phase, String schema) {
+		PhaseEvent e = (PhaseEvent)event;
+		e.end();
+		if (!e.shouldCommit()) return;
+		e.phase = phase;
+		e.schema = schema;
+		e.commit();
+	}
+
+	static void commitTable(Object event, String operation, String table, long bytes, long rows) {
+		TableEvent e = (TableEvent)event;
+		e.end();
+		if (!e.shouldCommit()) return;
+		e.operation = operation;
+		e.table = table;
+		e.bytes = bytes;
+		e.rows = rows;
+		e.commit();
+	}
+
+	static void commitCatalog(Object event, String query, long count) {
+		CatalogEvent e = (CatalogEvent)event;
+		e.end();
+		if (!e.shouldCommit()) return;
+		e.query = query;
+		e.count = count;
+		e.commit();
+	}
+
+}
@@ -0,0 +1,92 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/*
+ * Session settings used during restore. The FAST profiles trade durability of the
+ * restore transaction for speed, and load the table data already frozen when the
+ * server supports COPY FREEZE (9.3+), so that it is not rewritten later by hint bit
+ * setting and anti-wraparound vacuum. FAST_REPLICA also sets session_replication_role
+ * to replica during the data phase, which disables all triggers and requires the session user,
+ * not the owner the data is restored as, to be a superuser.
+ */
+public final class LoadProfile {
+
+	public static final LoadProfile DEFAULT = new LoadProfile("default", false, null, false, false);
+
+	public static final LoadProfile FAST = new LoadProfile("fast", true, "1GB", true, false);
+
+	public static final LoadProfile FAST_REPLICA = new LoadProfile("fast-replica", true, "1GB", true, true);
+
+	public static LoadProfile forName(String name) {
+		if (name == null || DEFAULT.name.equals(name)) return DEFAULT;
+		if (FAST.name.equals(name)) return FAST;
+		if (FAST_REPLICA.name.equals(name)) return FAST_REPLICA;
+		throw new RuntimeException("invalid load profile: " + name);
+	}
+
+	private final String name;
+	private final boolean copyFreeze;
+	private final String maintenanceWorkMem;
+	private final boolean asyncCommit;
+	private final boolean replicaRole;
+
+	private LoadProfile(String name, boolean copyFreeze, String maintenanceWorkMem,
+			boolean asyncCommit, boolean replicaRole) {
+		this.name = name;
+		this.copyFreeze = copyFreeze;
+		this.maintenanceWorkMem = maintenanceWorkMem;
+		this.asyncCommit = asyncCommit;
+		this.replicaRole = replicaRole;
+	}
+
+	void beginRestore(Connection con) throws SQLException {
+		if (asyncCommit) exec(con, "SET synchronous_commit = off");
+		// only used by the index and constraint phases, COPY does not need it
+		if (maintenanceWorkMem != null) exec(con, "SET maintenance_work_mem = '" + maintenanceWorkMem + "'");
+	}
+
+	void endRestore(Connection con) throws SQLException {
+		if (asyncCommit) exec(con, "RESET synchronous_commit");
+		if (maintenanceWorkMem != null) exec(con, "RESET maintenance_work_mem");
+	}
+
+	void beginData(Connection con) throws SQLException {
+		if (replicaRole) exec(con, "SET session_replication_role = replica");
+	}
+
+	void endData(Connection con) throws SQLException {
+		if (replicaRole) exec(con, "RESET session_replication_role");
+	}
+
+	// COPY FREEZE fails unless the table was created in the current transaction
+	boolean useFreeze(Connection con) throws SQLException {
+		if (!copyFreeze || con.getAutoCommit()) return false;
+		DatabaseMetaData metaData = con.getMetaData();
+		int major = metaData.getDatabaseMajorVersion();
+		return major > 9 || (major == 9 && metaData.getDatabaseMinorVersion() >= 3);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (freeze=" + copyFreeze + ", maintenance_work_mem=" + maintenanceWorkMem +
+				", synchronous_commit=" + (asyncCommit ? "off" : "default") +
+				", session_replication_role=" + (replicaRole ? "replica" : "default") + ")";
+	}
+
+	private static void exec(Connection con, String sql) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(sql);
+			stmt.executeUpdate();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Block compression of very large table entries on all cores. The data is cut into
+ * fixed size blocks, each compressed independently as a gzip member and stored
+ * uncompressed in the zip file as entries <table>.000000.gz, <table>.000001.gz, ...
+ * Concatenated in order, the blocks form a valid multi-member gzip file, and on
+ * restore they are again decompressed in parallel.
+ */
+final class ParallelGzip {
+
+	static final int BLOCK_SIZE = 4 << 20;
+	private static final String SUFFIX = ".gz";
+
+	private static ForkJoinPool pool = null;
+
+	private static synchronized ForkJoinPool pool() {
+		if (pool == null) pool = new ForkJoinPool();
+		return pool;
+	}
+
+	private static int maxInFlight() {
+		return pool().getParallelism() * 2;
+	}
+
+	static String blockName(String entryName, int seq) {
+		return entryName + "." + String.format("%06d", seq) + SUFFIX;
+	}
+
+	static boolean isBlock(String entryName) {
+		return entryName.endsWith(SUFFIX) && !CtidChunks.isChunk(entryName);
+	}
+
+	static int parseSeq(String entryName) {
+		String s = entryName.substring(0, entryName.length() - SUFFIX.length());
+		return Integer.parseInt(s.substring(s.lastIndexOf('.') + 1));
+	}
+
+	private static final class Block {
+		private final byte[] input;
+		private final byte[] data;
+		private final long crc;
+
+		private Block(byte[] input, byte[] data, long crc) {
+			this.input = input;
+			this.data = data;
+			this.crc = crc;
+		}
+	}
+
+	// compresses into block entries of the zip file, close() writes the last block but does not close zos
+	static final class Writer extends OutputStream {
+
+		private final ZipOutputStream zos;
+		private final String entryName;
+		private final Deque<Future<Block>> inFlight = new ArrayDeque<Future<Block>>();
+		private final Deque<byte[]> free = new ArrayDeque<byte[]>();
+		private byte[] buf = new byte[BLOCK_SIZE];
+		private int len = 0;
+		private int seq = 0;
+
+		Writer(ZipOutputStream zos, String entryName) {
+			this.zos = zos;
+			this.entryName = entryName;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			buf[len++] = (byte)b;
+			if (len == buf.length) submit();
+		}
+
+		@Override
+		public void write(byte[] b, int off, int n) throws IOException {
+			while (n > 0) {
+				int l = Math.min(n, buf.length - len);
+				System.arraycopy(b, off, buf, len, l);
+				len += l;
+				off += l;
+				n -= l;
+				if (len == buf.length) submit();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (len > 0) submit();
+			while (!inFlight.isEmpty()) writeBlock();
+		}
+
+		private void submit() throws IOException {
+			while (inFlight.size() >= maxInFlight()) writeBlock();
+			final byte[] input = buf;
+			final int n = len;
+			inFlight.add(pool().submit(new Callable<Block>() {
+				public Block call() throws IOException {
+					ByteArrayOutputStream bos = new ByteArrayOutputStream(n / 2);
+					GZIPOutputStream gzos = new GZIPOutputStream(bos, 1 << 16);
+					gzos.write(input, 0, n);
+					gzos.close();
+					byte[] data = bos.toByteArray();
+					return new Block(input, data, crc(data));
+				}
+			}));
+			buf = free.isEmpty() ? new byte[BLOCK_SIZE] : free.pop();
+			len = 0;
+		}
+
+		private void writeBlock() throws IOException {
+			Block block = Futures.get(inFlight.removeFirst());
+			putStoredEntry(zos, blockName(entryName, seq++), block.data, block.crc);
+			free.push(block.input);
+		}
+
+	}
+
+	// decompresses the blocks supplied in order, keeping up to two per core in progress
+	static final class Reader extends InputStream {
+
+		private final Iterator<byte[]> blocks;
+		private final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>();
+		private byte[] current = null;
+		private int pos = 0;
+
+		Reader(Iterator<byte[]> blocks) {
+			this.blocks = blocks;
+		}
+
+		// false at the end of the last block
+		private boolean fill() throws IOException {
+			while (current == null || pos == current.length) {
+				while (inFlight.size() < maxInFlight() && blocks.hasNext()) {
+					final byte[] block = blocks.next();
+					inFlight.add(pool().submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							ByteArrayOutputStream bos = new ByteArrayOutputStream(BLOCK_SIZE);
+							GZIPInputStream gzis = new GZIPInputStream(new ByteArrayInputStream(block), 1 << 16);
+							byte[] b = new byte[1 << 16];
+							int n;
+							while ((n = gzis.read(b)) != -1) {
+								bos.write(b, 0, n);
+							}
+							return bos.toByteArray();
+						}
+					}));
+				}
+				if (inFlight.isEmpty()) return false;
+				current = Futures.get(inFlight.removeFirst());
+				pos = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return current[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() {
+			for (Future<byte[]> f : inFlight) {
+				f.cancel(false);
+			}
+			inFlight.clear();
+		}
+
+	}
+
+	// for data which is already compressed
+	static void putStoredEntry(ZipOutputStream zos, String name, byte[] data, long crc) throws IOException {
+		ZipEntry entry = new ZipEntry(name);
+		entry.setMethod(ZipEntry.STORED);
+		entry.setSize(data.length);
+		entry.setCompressedSize(data.length);
+		entry.setCrc(crc);
+		zos.putNextEntry(entry);
+		zos.write(data);
+	}
+
+	static long crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return crc.getValue();
+	}
+
+	static byte[] readFully(InputStream is) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] b = new byte[1 << 16];
+		int n;
+		while ((n = is.read(b)) != -1) {
+			bos.write(b, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+}
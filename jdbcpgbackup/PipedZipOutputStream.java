@@ -0,0 +1,265 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * A ZipOutputStream which does all the CRC32, deflate and file writing work on a
+ * background thread. Data written by the caller is copied into a bounded pool of
+ * reused buffers and handed off, together with the entry operations in the same
+ * order, so that reading COPY OUT data from the socket does not wait for the
+ * compression, and the other way round.
+ */
+final class PipedZipOutputStream extends ZipOutputStream {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int BUFFER_COUNT = 16;
+
+	private abstract class Op {
+		abstract void run() throws IOException;
+
+		void discard() {}
+	}
+
+	private final Op stop = new Op() {
+		void run() {}
+	};
+
+	private final BlockingQueue<byte[]> free = new ArrayBlockingQueue<byte[]>(BUFFER_COUNT);
+	private final BlockingQueue<Op> ops = new ArrayBlockingQueue<Op>(BUFFER_COUNT * 4);
+	private final Thread thread;
+	private volatile IOException error = null;
+	private byte[] buf = null; // being filled by the caller
+	private int len = 0;
+	private boolean closed = false;
+
+	PipedZipOutputStream(OutputStream out) {
+		super(out);
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(new byte[BUFFER_SIZE]);
+		}
+		thread = new Thread("zip-writer") {
+			@Override
+			public void run() {
+				try {
+					Op op;
+					while ((op = ops.take()) != stop) {
+						if (error != null) { // keep returning the buffers, the caller will see the error
+							op.discard();
+							continue;
+						}
+						try {
+							op.run();
+						} catch (IOException e) {
+							error = e;
+						} catch (RuntimeException e) {
+							error = new IOException(e.getMessage(), e);
+						}
+					}
+				} catch (InterruptedException ignore) {}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private boolean onWriterThread() {
+		return Thread.currentThread() == thread;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (onWriterThread()) {
+			super.write(b);
+			return;
+		}
+		if (buf == null) buf = take();
+		buf[len++] = (byte)b;
+		if (len == buf.length) sendBuffer();
+	}
+
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException {
+		if (onWriterThread()) {
+			super.write(b, off, n);
+			return;
+		}
+		while (n > 0) {
+			if (buf == null) buf = take();
+			int l = Math.min(n, buf.length - len);
+			System.arraycopy(b, off, buf, len, l);
+			len += l;
+			off += l;
+			n -= l;
+			if (len == buf.length) sendBuffer();
+		}
+	}
+
+	@Override
+	public void putNextEntry(final ZipEntry e) throws IOException {
+		if (onWriterThread()) {
+			super.putNextEntry(e);
+			return;
+		}
+		send(new Op() {
+			void run() throws IOException {
+				PipedZipOutputStream.super.putNextEntry(e);
+			}
+		});
+	}
+
+	@Override
+	public void closeEntry() throws IOException {
+		if (onWriterThread()) {
+			super.closeEntry();
+			return;
+		}
+		send(new Op() {
+			void run() throws IOException {
+				PipedZipOutputStream.super.closeEntry();
+			}
+		});
+	}
+
+	@Override
+	public void setMethod(final int method) {
+		if (onWriterThread()) {
+			super.setMethod(method);
+			return;
+		}
+		try {
+			send(new Op() {
+				void run() {
+					PipedZipOutputStream.super.setMethod(method);
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void setLevel(final int level) {
+		if (onWriterThread()) {
+			super.setLevel(level);
+			return;
+		}
+		try {
+			send(new Op() {
+				void run() {
+					PipedZipOutputStream.super.setLevel(level);
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (onWriterThread()) {
+			super.flush();
+			return;
+		}
+		send(new Op() {
+			void run() throws IOException {
+				PipedZipOutputStream.super.flush();
+			}
+		});
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (onWriterThread()) {
+			super.finish();
+			return;
+		}
+		send(new Op() {
+			void run() throws IOException {
+				PipedZipOutputStream.super.finish();
+			}
+		});
+	}
+
+	// waits for the writer thread to write everything
+	@Override
+	public void close() throws IOException {
+		if (onWriterThread()) {
+			super.close();
+			return;
+		}
+		if (closed) return;
+		closed = true;
+		try {
+			send(new Op() {
+				void run() throws IOException {
+					PipedZipOutputStream.super.close();
+				}
+			});
+		} finally {
+			try {
+				ops.put(stop);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted while closing zip file");
+			}
+		}
+		checkError();
+	}
+
+	private void send(Op op) throws IOException {
+		if (len > 0) sendBuffer();
+		put(op);
+	}
+
+	private void sendBuffer() throws IOException {
+		final byte[] b = buf;
+		final int l = len;
+		buf = null;
+		len = 0;
+		put(new Op() {
+			void run() throws IOException {
+				try {
+					PipedZipOutputStream.super.write(b, 0, l);
+				} finally {
+					free.add(b);
+				}
+			}
+
+			@Override
+			void discard() {
+				free.add(b);
+			}
+		});
+	}
+
+	private void put(Op op) throws IOException {
+		checkError();
+		try {
+			ops.put(op);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing zip file");
+		}
+	}
+
+	private byte[] take() throws IOException {
+		checkError();
+		try {
+			return free.take();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while writing zip file");
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error != null) throw new IOException("error writing zip file: " + error.getMessage(), error);
+	}
+
+}
@@ -0,0 +1,249 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ * Progress counters of the running dump, restore or copy, updated from all threads
+ * whether or not timing output (-t) is enabled. Published as an MXBean, and
+ * optionally on a local HTTP endpoint, /metrics, in the Prometheus text format.
+ * Bytes and rows are those of the COPY data, the rates are averaged over at least
+ * one second between reads.
+ */
+public final class Progress implements ProgressMXBean {
+
+	private static final Progress instance = new Progress();
+
+	static Progress get() {
+		return instance;
+	}
+
+	private final long startTime = System.currentTimeMillis();
+	private volatile int totalSchemas = 0;
+	private final AtomicInteger processedSchemas = new AtomicInteger();
+	private volatile String currentSchema = null;
+	private volatile String currentTable = null;
+	private volatile long lastActivity = System.currentTimeMillis();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong rows = new AtomicLong();
+	private final ConcurrentMap<String,AtomicLong> phaseMillis = new ConcurrentHashMap<String,AtomicLong>();
+	private final ThreadLocal<Long> phaseStart = new ThreadLocal<Long>();
+
+	private long sampleTime = startTime;
+	private long sampleBytes = 0;
+	private long sampleRows = 0;
+	private double bytesPerSecond = 0;
+	private double rowsPerSecond = 0;
+
+	private static HttpServer httpServer = null;
+
+	private Progress() {}
+
+	void setTotal(int n) {
+		totalSchemas = n;
+	}
+
+	void schema(String name) {
+		currentSchema = name;
+		currentTable = null;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	void schemaDone() {
+		processedSchemas.incrementAndGet();
+		lastActivity = System.currentTimeMillis();
+	}
+
+	void table(String fullname) {
+		currentTable = fullname;
+		lastActivity = System.currentTimeMillis();
+	}
+
+	void rows(long n) {
+		if (n > 0) rows.addAndGet(n);
+		lastActivity = System.currentTimeMillis();
+	}
+
+	void phaseStart(String phase) {
+		phaseStart.set(System.currentTimeMillis());
+	}
+
+	void phaseEnd(String phase) {
+		Long start = phaseStart.get();
+		if (start == null) return;
+		phaseStart.remove();
+		AtomicLong total = phaseMillis.get(phase);
+		if (total == null) {
+			AtomicLong added = new AtomicLong();
+			total = phaseMillis.putIfAbsent(phase, added); // another thread may be ending the same phase
+			if (total == null) total = added;
+		}
+		total.addAndGet(System.currentTimeMillis() - start);
+	}
+
+	// COPY data bytes
+	void copied(long n) {
+		bytes.addAndGet(n);
+	}
+
+	public int getTotalSchemas() {
+		return totalSchemas;
+	}
+
+	public int getProcessedSchemas() {
+		return processedSchemas.get();
+	}
+
+	public String getCurrentSchema() {
+		return currentSchema;
+	}
+
+	public String getCurrentTable() {
+		return currentTable;
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getRows() {
+		return rows.get();
+	}
+
+	public synchronized double getBytesPerSecond() {
+		sample();
+		return bytesPerSecond;
+	}
+
+	public synchronized double getRowsPerSecond() {
+		sample();
+		return rowsPerSecond;
+	}
+
+	public long getEtaSeconds() {
+		int processed = processedSchemas.get();
+		if (processed == 0) return -1;
+		long elapsed = System.currentTimeMillis() - startTime;
+		return Math.max(0, totalSchemas - processed) * elapsed / processed / 1000;
+	}
+
+	public long getIdleSeconds() {
+		return (System.currentTimeMillis() - lastActivity) / 1000;
+	}
+
+	public Map<String,Long> getPhaseMillis() {
+		Map<String,Long> result = new HashMap<String,Long>();
+		for (Map.Entry<String,AtomicLong> phase : phaseMillis.entrySet()) {
+			result.put(phase.getKey(), phase.getValue().get());
+		}
+		return result;
+	}
+
+	private void sample() {
+		long now = System.currentTimeMillis();
+		if (now - sampleTime < 1000) return;
+		long b = bytes.get();
+		long r = rows.get();
+		bytesPerSecond = (b - sampleBytes) * 1000.0 / (now - sampleTime);
+		rowsPerSecond = (r - sampleRows) * 1000.0 / (now - sampleTime);
+		sampleTime = now;
+		sampleBytes = b;
+		sampleRows = r;
+	}
+
+	// registers the MXBean with the platform MBean server, once
+	public static synchronized void registerMBean() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName("jdbcpgbackup:type=Progress");
+			if (!server.isRegistered(name)) server.registerMBean(instance, name);
+		} catch (JMException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	// serves /metrics on the loopback interface only
+	public static synchronized void startHttp(int port) throws IOException {
+		if (httpServer != null) return;
+		httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+		httpServer.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = instance.toPrometheus().getBytes("UTF-8");
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream os = exchange.getResponseBody();
+				try {
+					os.write(body);
+				} finally {
+					os.close();
+				}
+			}
+		});
+		httpServer.start();
+	}
+
+	public static synchronized void stopHttp() {
+		if (httpServer == null) return;
+		httpServer.stop(0);
+		httpServer = null;
+	}
+
+	String toPrometheus() {
+		StringBuilder buf = new StringBuilder();
+		metric(buf, "schemas_total", "gauge", "schemas to be processed", getTotalSchemas());
+		metric(buf, "schemas_processed", "gauge", "schemas processed so far", getProcessedSchemas());
+		metric(buf, "copy_bytes_total", "counter", "COPY data bytes", getBytes());
+		metric(buf, "copy_rows_total", "counter", "COPY data rows", getRows());
+		metric(buf, "copy_bytes_per_second", "gauge", "recent COPY data bytes per second", getBytesPerSecond());
+		metric(buf, "copy_rows_per_second", "gauge", "recent COPY data rows per second", getRowsPerSecond());
+		metric(buf, "eta_seconds", "gauge", "estimated seconds to completion, -1 if unknown", getEtaSeconds());
+		metric(buf, "idle_seconds", "gauge", "seconds since the last schema or table was started or finished",
+				getIdleSeconds());
+		buf.append("# HELP jdbcpgbackup_phase_seconds_total cumulative time spent in each phase\n");
+		buf.append("# TYPE jdbcpgbackup_phase_seconds_total counter\n");
+		for (Map.Entry<String,Long> phase : new TreeMap<String,Long>(getPhaseMillis()).entrySet()) {
+			buf.append("jdbcpgbackup_phase_seconds_total{phase=\"").append(escape(phase.getKey())).append("\"} ");
+			buf.append(phase.getValue() / 1000.0).append("\n");
+		}
+		buf.append("# HELP jdbcpgbackup_current the schema and table being processed\n");
+		buf.append("# TYPE jdbcpgbackup_current gauge\n");
+		buf.append("jdbcpgbackup_current{schema=\"").append(escape(getCurrentSchema()));
+		buf.append("\",table=\"").append(escape(getCurrentTable())).append("\"} 1\n");
+		return buf.toString();
+	}
+
+	private static void metric(StringBuilder buf, String name, String type, String help, double value) {
+		buf.append("# HELP jdbcpgbackup_").append(name).append(" ").append(help).append("\n");
+		buf.append("# TYPE jdbcpgbackup_").append(name).append(" ").append(type).append("\n");
+		buf.append("jdbcpgbackup_").append(name).append(" ");
+		if (value == Math.rint(value)) buf.append((long)value);
+		else buf.append(value);
+		buf.append("\n");
+	}
+
+	private static String escape(String s) {
+		if (s == null) return "";
+		return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+}
@@ -0,0 +1,35 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.util.Map;
+
+// live progress of the running dump, restore or copy, registered as jdbcpgbackup:type=Progress
+public interface ProgressMXBean {
+
+	int getTotalSchemas();
+
+	int getProcessedSchemas();
+
+	String getCurrentSchema();
+
+	String getCurrentTable();
+
+	long getBytes();
+
+	long getRows();
+
+	double getBytesPerSecond();
+
+	double getRowsPerSecond();
+
+	// -1 until the first schema is done
+	long getEtaSeconds();
+
+	// seconds since the last schema or table was started or finished
+	long getIdleSeconds();
+
+	// cumulative milliseconds spent in each phase
+	Map<String,Long> getPhaseMillis();
+
+}
@@ -0,0 +1,194 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Reads a sequence of input streams on a background thread into a bounded ring of
+ * reused buffers, so that decompressing (or reading from the network) overlaps with
+ * the consumer sending the data on with COPY IN. The streams are returned by next()
+ * in the same order, and the following stream is already being read while the
+ * consumer is still busy with the current one.
+ */
+final class ReadAhead {
+
+	interface Source {
+		InputStream open() throws IOException;
+	}
+
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int BUFFER_COUNT = 16;
+
+	private static final class Chunk {
+		private final byte[] buf;
+		private int len;
+
+		private Chunk(int size) {
+			buf = new byte[size];
+		}
+	}
+
+	private static final Chunk END = new Chunk(0); // end of one stream
+	private static final Chunk ERROR = new Chunk(0); // producer failed, see error
+
+	private final BlockingQueue<Chunk> free;
+	private final BlockingQueue<Chunk> full;
+	private final Thread thread;
+	private volatile Exception error = null;
+	private Stream current = null;
+
+	ReadAhead(final Iterable<? extends Source> sources) {
+		free = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT);
+		full = new ArrayBlockingQueue<Chunk>(BUFFER_COUNT + 1);
+		for (int i = 0; i < BUFFER_COUNT; i++) {
+			free.add(new Chunk(BUFFER_SIZE));
+		}
+		thread = new Thread("read-ahead") {
+			@Override
+			public void run() {
+				try {
+					for (Source source : sources) {
+						InputStream is = source.open();
+						try {
+							fill(is);
+						} finally {
+							is.close();
+						}
+						full.put(END);
+					}
+				} catch (InterruptedException e) {
+					// closed by the consumer
+				} catch (Exception e) {
+					error = e;
+					try {
+						full.put(ERROR);
+					} catch (InterruptedException ignore) {}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// reads ahead a single stream, closing the returned stream stops the reading thread but does not close is
+	static InputStream of(final InputStream is) {
+		Source source = new Source() {
+			public InputStream open() {
+				return new FilterInputStream(is) {
+					@Override
+					public void close() {}
+				};
+			}
+		};
+		final ReadAhead readAhead = new ReadAhead(Collections.singletonList(source));
+		return new FilterInputStream(readAhead.next()) {
+			@Override
+			public void close() {
+				readAhead.close();
+			}
+		};
+	}
+
+	private void fill(InputStream is) throws IOException, InterruptedException {
+		while (true) {
+			Chunk chunk = free.take();
+			int len = 0;
+			int n;
+			while (len < chunk.buf.length && (n = is.read(chunk.buf, len, chunk.buf.length - len)) != -1) {
+				len += n;
+			}
+			if (len == 0) {
+				free.put(chunk);
+				return;
+			}
+			chunk.len = len;
+			full.put(chunk);
+			if (len < chunk.buf.length) return;
+		}
+	}
+
+	// the previous stream is drained if the consumer did not read all of it
+	InputStream next() {
+		if (current != null) current.drain();
+		current = new Stream();
+		return current;
+	}
+
+	void close() {
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException ignore) {}
+	}
+
+	private final class Stream extends InputStream {
+
+		private Chunk chunk = null;
+		private int pos = 0;
+		private boolean eof = false;
+
+		// false at the end of this stream
+		private boolean nextChunk() throws IOException {
+			if (eof) return false;
+			if (chunk != null && pos < chunk.len) return true;
+			if (chunk != null) {
+				free.add(chunk);
+				chunk = null;
+			}
+			Chunk next;
+			try {
+				next = full.take();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted while reading ahead");
+			}
+			if (next == ERROR) {
+				eof = true;
+				throw new IOException("read ahead failed: " + error.getMessage(), error);
+			}
+			if (next == END) {
+				eof = true;
+				return false;
+			}
+			chunk = next;
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!nextChunk()) return -1;
+			return chunk.buf[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!nextChunk()) return -1;
+			int n = Math.min(len, chunk.len - pos);
+			System.arraycopy(chunk.buf, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			drain();
+		}
+
+		private void drain() {
+			try {
+				while (nextChunk()) {
+					pos = chunk.len;
+				}
+			} catch (IOException ignore) {}
+		}
+
+	}
+
+}
@@ -13,6 +13,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 final class Schema extends DbBackupObject {
 
@@ -61,7 +63,7 @@ final class Schema extends DbBackupObject {
 	static class CachingSchemaFactory implements DBOFactory<Schema> { // does not extend CachingDBOFactory
 
 		protected Map<String,Schema> map = null;
-		private final Map<Integer,Schema> batch = new HashMap<Integer,Schema>();
+		private Map<Integer,Schema> batch = new HashMap<Integer,Schema>();
 		private Iterator<Schema> itr;
 
 		@Override
@@ -84,7 +86,7 @@ final class Schema extends DbBackupObject {
 			if (itr == null) {
 				itr = getDbBackupObjects(con, null).iterator();
 			}
-			batch.clear();
+			batch = new HashMap<Integer,Schema>(); // the previous batch may still be in use by its factories
 			while (itr.hasNext() && batch.size() < batchSize) {
 				Schema schema = itr.next();
 				batch.put(schema.getOid(), schema);
@@ -96,8 +98,14 @@ final class Schema extends DbBackupObject {
 			return batch.get(oid);
 		}
 
+		// by oid, unchanged by later calls to nextBatch
+		Map<Integer,Schema> getCurrentBatch() {
+			return Collections.unmodifiableMap(batch);
+		}
+
 		private void loadMap(Connection con) throws SQLException {
 			map = new HashMap<String,Schema>();
+			Object event = Events.beginCatalog();
 			PreparedStatement stmt = null;
 			try {
 				stmt = con.prepareStatement(
@@ -113,8 +121,92 @@ final class Schema extends DbBackupObject {
 			} finally {
 				if (stmt != null) stmt.close();
 			}
+			Events.commitCatalog(event, "loadMap " + getClass().getSimpleName(), map.size());
+		}
+
+	}
+
+	// table data size of each schema, from the page counts in pg_class, so without a stat of each file
+	static Map<String,Long> getEstimatedSizes(Connection con) throws SQLException {
+		Map<String,Long> sizes = new HashMap<String,Long>();
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(
+					"SELECT n.nspname AS schemaname, " +
+							"COALESCE(sum(c.relpages::bigint + COALESCE(t.relpages, 0)), 0) " +
+							"* current_setting('block_size')::bigint AS size " +
+							"FROM pg_namespace n " +
+							"JOIN pg_class c ON c.relnamespace = n.oid AND c.relkind = 'r'::\"char\" " +
+							"LEFT JOIN pg_class t ON t.oid = c.reltoastrelid " +
+					"GROUP BY n.nspname");
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				sizes.put(rs.getString("schemaname"), rs.getLong("size"));
+			}
+			rs.close();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+		return sizes;
+	}
+
+	/*
+	 * The other schemas with views, constraints, columns, defaults, triggers, functions
+	 * or types that depend on an object of this schema, and would be dropped with it.
+	 */
+	static Set<String> getDependentSchemas(Connection con, String schemaName) throws SQLException {
+		Set<String> schemas = new TreeSet<String>();
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(
+					"SELECT DISTINCT n.nspname FROM pg_catalog.pg_depend d " +
+							"LEFT JOIN pg_catalog.pg_rewrite r ON (d.classid = " + catalog("pg_rewrite") + " AND r.oid = d.objid) " +
+							"LEFT JOIN pg_catalog.pg_attrdef ad ON (d.classid = " + catalog("pg_attrdef") + " AND ad.oid = d.objid) " +
+							"LEFT JOIN pg_catalog.pg_trigger tg ON (d.classid = " + catalog("pg_trigger") + " AND tg.oid = d.objid) " +
+							"LEFT JOIN pg_catalog.pg_class c ON (c.oid = CASE d.classid " +
+								"WHEN " + catalog("pg_class") + " THEN d.objid WHEN " + catalog("pg_rewrite") + " THEN r.ev_class " +
+								"WHEN " + catalog("pg_attrdef") + " THEN ad.adrelid WHEN " + catalog("pg_trigger") + " THEN tg.tgrelid END) " +
+							"LEFT JOIN pg_catalog.pg_constraint o ON (d.classid = " + catalog("pg_constraint") + " AND o.oid = d.objid) " +
+							"LEFT JOIN pg_catalog.pg_proc p ON (d.classid = " + catalog("pg_proc") + " AND p.oid = d.objid) " +
+							"LEFT JOIN pg_catalog.pg_type t ON (d.classid = " + catalog("pg_type") + " AND t.oid = d.objid) " +
+							"JOIN pg_catalog.pg_namespace n ON " +
+								"(n.oid = COALESCE(c.relnamespace, o.connamespace, p.pronamespace, t.typnamespace)) " +
+							"JOIN pg_catalog.pg_namespace s ON (s.nspname = ?) " +
+					"WHERE d.deptype = 'n' AND n.oid <> s.oid AND (" +
+							"(d.refclassid = " + catalog("pg_class") + " AND d.refobjid IN " +
+								"(SELECT oid FROM pg_catalog.pg_class WHERE relnamespace = s.oid)) " +
+							"OR (d.refclassid = " + catalog("pg_type") + " AND d.refobjid IN " +
+								"(SELECT oid FROM pg_catalog.pg_type WHERE typnamespace = s.oid)) " +
+							"OR (d.refclassid = " + catalog("pg_proc") + " AND d.refobjid IN " +
+								"(SELECT oid FROM pg_catalog.pg_proc WHERE pronamespace = s.oid)))");
+			stmt.setString(1, schemaName);
+			ResultSet rs = stmt.executeQuery();
+			while (rs.next()) {
+				schemas.add(rs.getString("nspname"));
+			}
+			rs.close();
+		} finally {
+			if (stmt != null) stmt.close();
 		}
+		return schemas;
+	}
 
+	private static String catalog(String name) {
+		return "'pg_catalog." + name + "'::regclass::oid";
+	}
+
+	// with everything in it, but not with objects of other schemas that depend on it
+	static void dropSchema(Connection con, String schemaName) throws SQLException {
+		Set<String> dependents = getDependentSchemas(con, schemaName);
+		if (!dependents.isEmpty())
+			throw new RuntimeException("schema " + schemaName + " not dropped, objects in " + dependents + " depend on it");
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement("DROP SCHEMA " + schemaName + " CASCADE");
+			stmt.executeUpdate();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
 	}
 
 	static Schema createSchema(Connection con, String schemaName, String owner, DBOFactory<Schema> schemaFactory) throws SQLException {
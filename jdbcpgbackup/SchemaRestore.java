@@ -0,0 +1,172 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Restores one schema from its backup entries, which must be supplied in the order
+ * they are written by the dump: sequences.sql, tables.sql, table data, views.sql,
+ * indexes.sql, constraints.sql, or with all the sql before the table data. Used both
+ * for random access zip files and for single pass restore from a zip stream.
+ */
+final class SchemaRestore implements CompactLayout.TableConsumer {
+
+	private final String fromSchemaName;
+	private final String toSchemaName;
+	private final boolean isNewSchema;
+	private final Schema toSchema;
+	private final String toOwner;
+	private final Session session;
+	private final LoadProfile loadProfile;
+
+	private Map<String,Table> tables = null;
+	private Map<String,List<String>> template = null;
+	private boolean inData = false;
+	private boolean freeze;
+
+	// toSchema is the existing target schema, or null if it is to be created
+	SchemaRestore(String fromSchemaName, String toSchemaName, String toOwner, Schema toSchema,
+			DBOFactory<Schema> schemaFactory, Session session, LoadProfile loadProfile) throws SQLException {
+		this.fromSchemaName = fromSchemaName;
+		this.toSchemaName = toSchemaName;
+		this.session = session;
+		this.loadProfile = loadProfile;
+		Progress.get().schema(toSchemaName);
+		Events.schema(toSchemaName);
+		ZipBackup.timerStart("schemas");
+		isNewSchema = !toSchemaName.equals(fromSchemaName);
+		if (toSchema == null) {
+			session.resetRole(); // not as the owner of the schema restored before on this session
+			toSchema = Schema.createSchema(session.con, toSchemaName, toOwner, schemaFactory);
+		} else {
+			toOwner = toSchema.getOwner(); // preserve existing owner
+		}
+		this.toSchema = toSchema;
+		this.toOwner = toOwner;
+		session.setRole(toOwner);
+		session.setSearchPath(toSchema.getName());
+		ZipBackup.timerEnd("schemas");
+	}
+
+	// fileName is one of sequences.sql, tables.sql, views.sql, indexes.sql, constraints.sql
+	void restoreSql(String fileName, InputStream is) throws IOException, SQLException {
+		try {
+			restoreSql(fileName, DdlTemplates.readLines(is));
+		} finally {
+			is.close();
+		}
+	}
+
+	void restoreSql(String fileName, List<String> sql) throws SQLException {
+		if (inData) endData();
+		String step = fileName.substring(0, fileName.length() - ".sql".length());
+		ZipBackup.timerStart(step);
+		execSql(sql, session, isNewSchema);
+		if ("tables.sql".equals(fileName)) {
+			tables = Table.TableFactory.getTableMap(session.con, toSchema);
+		}
+		ZipBackup.timerEnd(step);
+	}
+
+	/*
+	 * Template sql for each of tables.sql, views.sql, indexes.sql and constraints.sql.
+	 * Restores tables.sql right away, the others are restored by finish().
+	 */
+	void restoreTemplate(Map<String,List<String>> template) throws SQLException {
+		this.template = template;
+		restoreSql("tables.sql", template.get("tables.sql"));
+	}
+
+	// only known after tables.sql has been restored
+	String getTableOwner(String tableName) {
+		return isNewSchema ? toOwner : getTable(tableName).getOwner();
+	}
+
+	public void restoreTable(String tableName, InputStream is) throws IOException, SQLException {
+		Table table = getTable(tableName);
+		ZipBackup.timerStart("table data");
+		if (!inData) {
+			session.resetRole(); // session_replication_role is checked against the current role
+			loadProfile.beginData(session.con);
+			freeze = loadProfile.useFreeze(session.con);
+			inData = true;
+		}
+		session.setRole(getTableOwner(tableName));
+		table.restore(is, session.con, freeze);
+		ZipBackup.timerEnd("table data");
+	}
+
+	void finish() throws SQLException {
+		if (inData) endData();
+		if (template != null) {
+			restoreSql("views.sql", template.get("views.sql"));
+			restoreSql("indexes.sql", template.get("indexes.sql"));
+			restoreSql("constraints.sql", template.get("constraints.sql"));
+		}
+		ZipBackup.processedSchema();
+		Progress.get().schemaDone();
+	}
+
+	RuntimeException error(Exception e) {
+		return new RuntimeException("error restoring " + fromSchemaName + " to " + toSchemaName, e);
+	}
+
+	private void endData() throws SQLException {
+		session.resetRole();
+		loadProfile.endData(session.con);
+		session.setRole(toOwner);
+		inData = false;
+	}
+
+	private Table getTable(String tableName) {
+		if (tables == null) throw new RuntimeException("table data for " + tableName + " found before tables.sql");
+		Table table = tables.get(tableName);
+		if (table == null) throw new RuntimeException("no such table: " + tableName);
+		return table;
+	}
+
+	// closes the input stream
+	static void execSql(InputStream is, Session session, boolean isNewSchema) throws IOException, SQLException {
+		try {
+			execSql(DdlTemplates.readLines(is), session, isNewSchema);
+		} finally {
+			is.close();
+		}
+	}
+
+	static void execSql(List<String> sqlLines, Session session, boolean isNewSchema) throws SQLException {
+		Connection con = session.con;
+		for (String sql : sqlLines) {
+			if (isNewSchema) { // skip any role and ownership changes if restoring to new schema
+				if (sql.startsWith("SET ROLE ") || (sql.startsWith("ALTER ") && sql.contains(" OWNER TO "))) {
+					continue;
+				}
+			}
+			if (sql.startsWith("SET ROLE ")) {
+				session.setRole(sql.substring("SET ROLE ".length(), sql.lastIndexOf(';')).trim());
+				continue;
+			}
+			PreparedStatement stmt = null;
+			try {
+				stmt = con.prepareStatement(sql);
+				if (sql.startsWith("SELECT ")) {
+					stmt.executeQuery();
+				} else {
+					stmt.executeUpdate();
+				}
+			} catch (SQLException e) {
+				throw new RuntimeException("error executing sql: " + sql, e);
+			} finally {
+				if (stmt != null) stmt.close();
+			}
+		}
+	}
+
+}
@@ -67,10 +67,12 @@ final class Sequence extends DbBackupObject {
 
 		@Override
 		protected PreparedStatement getAllStatement(Connection con) throws SQLException {
-			return con.prepareStatement(
+			PreparedStatement stmt = con.prepareStatement(
 					"SELECT c.relname AS sequencename, pg_get_userbyid(c.relowner) AS owner, " +
 							"c.relnamespace AS schema_oid FROM pg_class c " +
-					"WHERE c.relkind='S'");
+					"WHERE c.relkind='S' AND c.relnamespace = ANY (?)");
+			stmt.setArray(1, getSchemaOids(con));
+			return stmt;
 		}
 
 		@Override
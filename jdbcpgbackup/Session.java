@@ -0,0 +1,56 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+// keeps track of the role and search path set on a connection, to skip redundant SET commands
+final class Session {
+
+	final Connection con;
+	private String role = null;
+	private String searchPath = null;
+
+	Session(Connection con) {
+		this.con = con;
+	}
+
+	void setRole(String role) throws SQLException {
+		if (role.equals(this.role)) return;
+		exec("SET ROLE " + role);
+		this.role = role;
+	}
+
+	// back to the session user, for what only it may do
+	void resetRole() throws SQLException {
+		if (role == null) return;
+		exec("RESET ROLE");
+		role = null;
+	}
+
+	void setSearchPath(String schemaName) throws SQLException {
+		if (schemaName.equals(searchPath)) return;
+		exec("SET SEARCH_PATH = " + schemaName);
+		searchPath = schemaName;
+	}
+
+	void reset() throws SQLException {
+		if (searchPath != null) exec("RESET SEARCH_PATH");
+		if (role != null) exec("RESET ROLE");
+		searchPath = null;
+		role = null;
+	}
+
+	private void exec(String sql) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(sql);
+			stmt.executeUpdate();
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The inflated content of a backup entry, read once and then opened any number of
+ * times, also from several threads at once. Kept in memory while all spools in memory
+ * together stay within MEMORY_LIMIT bytes, otherwise written to a temporary file.
+ * delete() gives back the memory or removes the file.
+ */
+final class Spool {
+
+	static final long MEMORY_LIMIT = 64L << 20;
+
+	private static final AtomicLong inMemory = new AtomicLong(); // bytes held by all spools not deleted
+
+	private final byte[] data;
+	private final File file;
+	private boolean deleted = false;
+
+	private Spool(byte[] data, File file) {
+		this.data = data;
+		this.file = file;
+	}
+
+	private static boolean reserve(long bytes) {
+		while (true) {
+			long used = inMemory.get();
+			if (used + bytes > MEMORY_LIMIT) return false;
+			if (inMemory.compareAndSet(used, used + bytes)) return true;
+		}
+	}
+
+	// closes the input stream
+	static Spool of(InputStream is) throws IOException {
+		File file = null;
+		OutputStream fos = null;
+		long reserved = 0;
+		try {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			byte[] b = new byte[1 << 16];
+			int n;
+			while ((n = is.read(b)) != -1) {
+				if (fos == null && !reserve(n)) {
+					file = File.createTempFile("jdbcpgbackup", ".copy");
+					file.deleteOnExit();
+					fos = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+					bos.writeTo(fos);
+					bos = null;
+					inMemory.addAndGet(-reserved);
+					reserved = 0;
+				}
+				if (fos == null) reserved += n;
+				if (fos == null) bos.write(b, 0, n);
+				else fos.write(b, 0, n);
+			}
+			if (fos == null) {
+				Spool spool = new Spool(bos.toByteArray(), null);
+				reserved = 0; // given back by delete()
+				return spool;
+			}
+			fos.close();
+			fos = null;
+			return new Spool(null, file);
+		} catch (IOException e) {
+			if (file != null) file.delete();
+			throw e;
+		} finally {
+			inMemory.addAndGet(-reserved);
+			is.close();
+			if (fos != null) fos.close();
+		}
+	}
+
+	InputStream open() throws IOException {
+		if (file == null) return new ByteArrayInputStream(data);
+		return new BufferedInputStream(new FileInputStream(file), 1 << 16);
+	}
+
+	void delete() {
+		if (deleted) return;
+		deleted = true;
+		if (file != null) file.delete();
+		else inMemory.addAndGet(-data.length);
+	}
+
+}
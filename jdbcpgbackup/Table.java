@@ -2,6 +2,8 @@
 
 package jdbcpgbackup;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -20,7 +22,10 @@ import java.util.Set;
 import java.util.TreeSet;
 
 import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
 import org.postgresql.copy.CopyManager;
+import org.postgresql.copy.CopyOperation;
+import org.postgresql.copy.CopyOut;
 import org.postgresql.core.BaseConnection;
 
 final class Table extends DbBackupObject {
@@ -34,13 +39,14 @@ final class Table extends DbBackupObject {
 			PreparedStatement stmt = null;
 			try {
 				stmt = con.prepareStatement("SELECT pg_get_userbyid(c.relowner) AS tableowner, " +
-						"c.relname AS tablename, c.oid AS table_oid " +
+						"c.relname AS tablename, c.oid AS table_oid, " + SIZE_COLUMNS +
 						"FROM pg_class c " +
 						"WHERE c.relkind = 'r'::\"char\" AND c.relnamespace = ?");
 				stmt.setInt(1, schema.getOid());
 				ResultSet rs = stmt.executeQuery();
 				while (rs.next()) {
 					Table table = new Table(rs.getString("tablename"), schema, rs.getString("tableowner"));
+					table.setSize(rs);
 					loadColumns(con, table, rs.getInt("table_oid"));
 					tables.add(table);
 				}
@@ -82,16 +88,40 @@ final class Table extends DbBackupObject {
 			return table;
 		}
 
+		// all tables in a schema by name, does not load columns
+		static Map<String,Table> getTableMap(Connection con, Schema schema) throws SQLException {
+			Map<String,Table> tables = new HashMap<String,Table>();
+			PreparedStatement stmt = null;
+			try {
+				stmt = con.prepareStatement("SELECT pg_get_userbyid(c.relowner) AS tableowner, c.relname AS tablename " +
+						"FROM pg_class c " +
+						"WHERE c.relkind = 'r'::\"char\" AND c.relnamespace = ?");
+				stmt.setInt(1, schema.getOid());
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					String tableName = rs.getString("tablename");
+					tables.put(tableName, new Table(tableName, schema, rs.getString("tableowner")));
+				}
+				rs.close();
+			} finally {
+				if (stmt != null) stmt.close();
+			}
+			return tables;
+		}
+
 		private void loadColumns(Connection con, Table table, int tableOid) throws SQLException {
+			Object event = Events.beginCatalog();
 			PreparedStatement stmt = null;
 			try {
 				stmt = con.prepareStatement(
 						"SELECT a.attname,a.atttypid," +
 								"a.attnotnull OR (t.typtype = 'd' AND t.typnotnull) AS attnotnull,a.atttypmod," +
 								"row_number() OVER (PARTITION BY a.attrelid ORDER BY a.attnum) AS attnum, " +
-								"pg_catalog.pg_get_expr(def.adbin, def.adrelid) AS adsrc,t.typtype " +
+								"pg_catalog.pg_get_expr(def.adbin, def.adrelid) AS adsrc,t.typtype,t.typname, " +
+								"tn.nspname AS typschema, " + SEQUENCE_COLUMN +
 								"FROM pg_catalog.pg_attribute a " +
 								"JOIN pg_catalog.pg_type t ON (a.atttypid = t.oid) " +
+								"JOIN pg_catalog.pg_namespace tn ON (t.typnamespace = tn.oid) " +
 								"LEFT JOIN pg_catalog.pg_attrdef def ON (a.attrelid=def.adrelid AND a.attnum = def.adnum) " +
 								"WHERE a.attnum > 0 AND NOT a.attisdropped " +
 						"AND a.attrelid = ? ");
@@ -104,6 +134,7 @@ final class Table extends DbBackupObject {
 			} finally {
 				if (stmt != null) stmt.close();
 			}
+			Events.commitCatalog(event, "loadColumns " + table.getFullname(), table.columns.size());
 		}
 
 	}
@@ -119,10 +150,12 @@ final class Table extends DbBackupObject {
 
 		@Override
 		protected PreparedStatement getAllStatement(Connection con) throws SQLException {
-			return con.prepareStatement("SELECT c.relnamespace AS schema_oid, c.relname AS tablename, " + 
+			PreparedStatement stmt = con.prepareStatement("SELECT c.relnamespace AS schema_oid, c.relname AS tablename, " + 
 					"pg_get_userbyid(c.relowner) AS tableowner, c.oid " +
 					"FROM pg_class c " +
-					"WHERE c.relkind = 'r'::\"char\"");
+					"WHERE c.relkind = 'r'::\"char\" AND c.relnamespace = ANY (?)");
+			stmt.setArray(1, getSchemaOids(con));
+			return stmt;
 		}
 
 		@Override
@@ -134,31 +167,58 @@ final class Table extends DbBackupObject {
 
 		@Override
 		protected void loadMap(Connection con) throws SQLException {
+			loadTables(con);
+			loadColumns(con);
+			loadSizes(con);
+		}
+
+		// the tables without columns and sizes, which can then be loaded at the same time on other connections
+		void loadTables(Connection con) throws SQLException {
 			ZipBackup.timerStart("tables");
 			super.loadMap(con);
 			ZipBackup.timerEnd("tables");
-			loadColumns(con);
 		}
 
 		Table getTable(int table_oid) {
 			return oidMap.get(table_oid);
 		}
 
-		private void loadColumns(Connection con) throws SQLException {
+		// also by oid, for the sizes, indexes and constraints
+		void reuse(Schema schema, Map<Integer,Table> tables) {
+			oidMap.putAll(tables);
+			reuse(schema, tables.values());
+		}
+
+		// the tables of the schema by oid, once loaded
+		Map<Integer,Table> getTablesByOid(Schema schema) {
+			Map<Integer,Table> tables = new HashMap<Integer,Table>();
+			for (Map.Entry<Integer,Table> table : oidMap.entrySet()) {
+				if (table.getValue().schema == schema) tables.put(table.getKey(), table.getValue());
+			}
+			return tables;
+		}
+
+		void loadColumns(Connection con) throws SQLException {
+			if (!hasSchemasToLoad()) return;
 			ZipBackup.timerStart("load columns");
 			ZipBackup.debug("begin loading columns...");
+			Object event = Events.beginCatalog();
+			int count = 0;
 			PreparedStatement stmt = null;
 			try {
 				stmt = con.prepareStatement(
 						"SELECT a.attrelid AS table_oid, a.attname, a.atttypid," +
 								"a.attnotnull OR (t.typtype = 'd' AND t.typnotnull) AS attnotnull, a.atttypmod, " +
 								"row_number() OVER (PARTITION BY a.attrelid ORDER BY a.attnum) AS attnum, " +
-								"pg_catalog.pg_get_expr(def.adbin, def.adrelid) AS adsrc, t.typtype " +
+								"pg_catalog.pg_get_expr(def.adbin, def.adrelid) AS adsrc, t.typtype, t.typname, " +
+								"tn.nspname AS typschema, " + SEQUENCE_COLUMN +
 								"FROM pg_catalog.pg_attribute a " +
+								"JOIN pg_catalog.pg_class c ON (a.attrelid = c.oid) " +
 								"JOIN pg_catalog.pg_type t ON (a.atttypid = t.oid) " +
+								"JOIN pg_catalog.pg_namespace tn ON (t.typnamespace = tn.oid) " +
 								"LEFT JOIN pg_catalog.pg_attrdef def ON (a.attrelid=def.adrelid AND a.attnum = def.adnum) " +
-						"WHERE a.attnum > 0 AND NOT a.attisdropped ");
-				int count = 0;
+						"WHERE a.attnum > 0 AND NOT a.attisdropped AND c.relnamespace = ANY (?)");
+				stmt.setArray(1, getSchemaOids(con));
 				ResultSet rs = stmt.executeQuery();
 				while (rs.next()) {
 					int oid = rs.getInt("table_oid");
@@ -172,10 +232,33 @@ final class Table extends DbBackupObject {
 			} finally {
 				if (stmt != null) stmt.close();
 			}
+			Events.commitCatalog(event, "loadColumns", count);
 			ZipBackup.debug("end loading columns");
 			ZipBackup.timerEnd("load columns");		
 		}
 
+		// relation sizes only for the tables in the current batch, as pg_relation_size has to stat each file
+		void loadSizes(Connection con) throws SQLException {
+			ZipBackup.timerStart("load sizes");
+			PreparedStatement stmt = null;
+			try {
+				stmt = con.prepareStatement(
+						"SELECT c.oid, " + SIZE_COLUMNS +
+						"FROM pg_class c " +
+						"WHERE c.relkind = 'r'::\"char\" AND c.relnamespace = ANY (?)");
+				stmt.setArray(1, con.createArrayOf("int4", batch.keySet().toArray(new Integer[batch.size()])));
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					Table table = oidMap.get(rs.getInt("oid"));
+					if (table != null) table.setSize(rs);
+				}
+				rs.close();
+			} finally {
+				if (stmt != null) stmt.close();
+			}
+			ZipBackup.timerEnd("load sizes");
+		}
+
 	}
 
 
@@ -199,6 +282,22 @@ final class Table extends DbBackupObject {
 	}
 	 */
 
+	// the owned sequence of a serial column, in the same query instead of one round trip per column
+	private static final String SEQUENCE_COLUMN =
+			"CASE WHEN pg_catalog.pg_get_expr(def.adbin, def.adrelid) LIKE '%nextval(%' " +
+			"THEN pg_catalog.pg_get_serial_sequence(a.attrelid::regclass::text, a.attname) END AS sequencename ";
+
+	private static final String SIZE_COLUMNS =
+			"pg_relation_size(c.oid) + CASE WHEN c.reltoastrelid = 0 THEN 0 " +
+			"ELSE pg_relation_size(c.reltoastrelid) END AS relsize ";
+
+	// largest first, so that when tables are processed in parallel the biggest one does not start last
+	static final Comparator<Table> LARGEST_FIRST = new Comparator<Table>() {
+		public int compare(Table a, Table b) {
+			return a.size < b.size ? 1 : (a.size > b.size ? -1 : 0);
+		}
+	};
+
 	private final Set<Column> columns = new TreeSet<Column>(
 			new Comparator<Column>() { 
 				public int compare(Column a, Column b) {
@@ -206,10 +305,51 @@ final class Table extends DbBackupObject {
 				};
 			});
 
+	private long size = -1; // unknown
+	private Fingerprints.Rows fingerprint = null; // of the rows dumped, if set
+
 	private Table(String name, Schema schema, String owner) {
 		super(name, schema, owner);
 	}
 
+	private void setSize(ResultSet rs) throws SQLException {
+		size = rs.getLong("relsize");
+	}
+
+	// on-disk size of the table and its toast table in bytes, -1 if not known
+	long getSize() {
+		return size;
+	}
+
+	// for a CatalogSnapshot, without the size
+	void write(DataOutputStream out) throws IOException {
+		CatalogSnapshot.writeString(out, name);
+		CatalogSnapshot.writeString(out, owner);
+		out.writeInt(columns.size());
+		for (Column column : columns) {
+			column.write(out);
+		}
+	}
+
+	static Table read(DataInputStream in, Schema schema) throws IOException {
+		Table table = new Table(CatalogSnapshot.readString(in), schema, CatalogSnapshot.readString(in));
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			table.columns.add(table.new Column(in));
+		}
+		return table;
+	}
+
+	// also adds the rows of each following dump to rows
+	void setFingerprint(Fingerprints.Rows rows) {
+		this.fingerprint = rows;
+	}
+
+	// no heap or toast pages at all, so no row can be visible to any snapshot
+	boolean isEmpty() {
+		return size == 0;
+	}
+
 	@Override
 	protected StringBuilder appendCreateSql(StringBuilder buf) {
 		buf.append("CREATE TABLE ").append(getName());
@@ -228,13 +368,176 @@ final class Table extends DbBackupObject {
 	}
 
 	void dump(Connection con, OutputStream os) throws SQLException, IOException {
+		dump(con, os, "COPY " + getFullname() + " TO STDOUT BINARY");
+	}
+
+	/*
+	 * The rows read with readFromCopy are gathered in a pooled buffer and written to os
+	 * in large pieces, instead of one write, and one round through the compressor, for
+	 * each row.
+	 */
+	private void dump(Connection con, OutputStream os, String sql) throws SQLException, IOException {
+		Object event = Events.beginTable();
+		Progress progress = Progress.get();
+		progress.table(getFullname());
+		Throttle throttle = Throttle.of(con);
 		CopyManager copyManager = ((PGConnection)con).getCopyAPI();
-		copyManager.copyOut("COPY " + getFullname() + " TO STDOUT BINARY", os);
+		CopyOut copyOut = copyManager.copyOut(sql);
+		byte[] buf = BufferPool.take();
+		int len = 0;
+		long bytes = 0;
+		try {
+			byte[] row;
+			while ((row = copyOut.readFromCopy()) != null) {
+				if (fingerprint != null) fingerprint.add(row);
+				if (len + row.length > buf.length) {
+					write(buf, len, os, throttle);
+					len = 0;
+				}
+				if (row.length > buf.length) {
+					write(row, row.length, os, throttle);
+				} else {
+					System.arraycopy(row, 0, buf, len, row.length);
+					len += row.length;
+				}
+				bytes += row.length;
+			}
+			if (len > 0) write(buf, len, os, throttle);
+		} finally {
+			BufferPool.give(buf);
+			cancel(copyOut);
+		}
+		long rows = copyOut.getHandledRowCount();
+		progress.rows(rows);
+		Events.commitTable(event, "dump", getFullname(), bytes, rows);
+	}
+
+	private static void write(byte[] buf, int len, OutputStream os, Throttle throttle) throws IOException {
+		if (throttle != null) throttle.copied(len);
+		os.write(buf, 0, len);
+		Progress.get().copied(len);
 	}
 
-	void restore(InputStream is, Connection con) throws SQLException, IOException {
+	// if the copy did not complete, so that the connection can be used again
+	private static void cancel(CopyOperation copy) {
+		if (!copy.isActive()) return;
+		try {
+			copy.cancelCopy();
+		} catch (SQLException ignore) {} // already failing
+	}
+
+	// the COPY OUT data as a stream, to be sent on to another connection without storing it
+	InputStream copyOut(Connection con) throws SQLException {
 		CopyManager copyManager = ((PGConnection)con).getCopyAPI();
-		copyManager.copyIn("COPY " + getFullname() + " FROM STDIN BINARY", is);
+		final CopyOut copyOut = copyManager.copyOut("COPY " + getFullname() + " TO STDOUT BINARY");
+		final Throttle throttle = Throttle.of(con);
+		return new InputStream() {
+			private byte[] buf = null;
+			private int pos = 0;
+
+			// false once all the data has been read
+			private boolean fill() throws IOException {
+				while (buf == null || pos == buf.length) {
+					if (!copyOut.isActive()) return false;
+					try {
+						buf = copyOut.readFromCopy();
+					} catch (SQLException e) {
+						throw new IOException(e.getMessage(), e);
+					}
+					pos = 0;
+					if (buf == null) return false;
+					if (throttle != null) throttle.copied(buf.length);
+				}
+				return true;
+			}
+
+			@Override
+			public int read() throws IOException {
+				if (!fill()) return -1;
+				return buf[pos++] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) return 0;
+				if (!fill()) return -1;
+				int n = Math.min(len, buf.length - pos);
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				return n;
+			}
+
+			// cancels the COPY if not all of the data has been read
+			@Override
+			public void close() throws IOException {
+				if (!copyOut.isActive()) return;
+				try {
+					copyOut.cancelCopy();
+				} catch (SQLException e) {
+					throw new IOException(e.getMessage(), e);
+				}
+			}
+		};
+	}
+
+	// rows in heap blocks from fromBlock up to but not including toBlock, or to the end if toBlock is -1
+	void dump(Connection con, OutputStream os, long fromBlock, long toBlock) throws SQLException, IOException {
+		StringBuilder sql = new StringBuilder();
+		sql.append("COPY (SELECT * FROM ").append(getFullname());
+		sql.append(" WHERE ctid >= '(").append(fromBlock).append(",0)'::tid");
+		if (toBlock >= 0) sql.append(" AND ctid < '(").append(toBlock).append(",0)'::tid");
+		sql.append(") TO STDOUT BINARY");
+		dump(con, os, sql.toString());
+	}
+
+	// current number of heap blocks, not including toast
+	long getBlockCount(Connection con) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(
+					"SELECT pg_relation_size(?::regclass) / current_setting('block_size')::bigint AS blocks");
+			stmt.setString(1, getFullname());
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			long blocks = rs.getLong("blocks");
+			rs.close();
+			return blocks;
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+	void restore(InputStream is, Connection con, boolean freeze) throws SQLException, IOException {
+		Object event = Events.beginTable();
+		Progress progress = Progress.get();
+		progress.table(getFullname());
+		byte[] buf = BufferPool.take();
+		try {
+			int n = is.read(buf);
+			if (n == -1) return; // empty table entry, nothing to copy
+			CopyManager copyManager = ((PGConnection)con).getCopyAPI();
+			CopyIn copyIn;
+			if (freeze) {
+				copyIn = copyManager.copyIn("COPY " + getFullname() + " FROM STDIN (FORMAT binary, FREEZE true)");
+			} else {
+				copyIn = copyManager.copyIn("COPY " + getFullname() + " FROM STDIN BINARY");
+			}
+			long bytes = 0;
+			try {
+				do {
+					copyIn.writeToCopy(buf, 0, n);
+					bytes += n;
+					progress.copied(n);
+				} while ((n = is.read(buf)) != -1);
+				long rows = copyIn.endCopy();
+				progress.rows(rows);
+				Events.commitTable(event, "restore", getFullname(), bytes, rows);
+			} finally {
+				cancel(copyIn);
+			}
+		} finally {
+			BufferPool.give(buf);
+		}
 	}
 
 	private static final Set<String> appendSizeTo = new HashSet<String>(
@@ -277,7 +580,14 @@ final class Table extends DbBackupObject {
 
 			position = rs.getInt("attnum");
 			name = rs.getString("attname");
-			typeName = con.getTypeInfo().getPGType(typeOid);
+			// as getPGType, without a round trip for each new type oid, but qualified unless built in or in
+			// the schema itself, as restore only has the target schema on the search path
+			String typeSchema = rs.getString("typschema");
+			if ("pg_catalog".equals(typeSchema) || schema.getName().equals(typeSchema)) {
+				typeName = rs.getString("typname");
+			} else {
+				typeName = "\"" + typeSchema + "\".\"" + rs.getString("typname") + "\"";
+			}
 			decimalDigits = con.getTypeInfo().getScale(typeOid, typeMod);
 			columnSize = con.getTypeInfo().getPrecision(typeOid, typeMod);
 			if (columnSize == 0) {
@@ -295,26 +605,36 @@ final class Table extends DbBackupObject {
 				defaultValue = null;
 				isAutoincrement = false;
 			}
-			if (isAutoincrement) {
-				PreparedStatement stmt = null;
-				try {
-					stmt = con.prepareStatement(
-							"SELECT pg_get_serial_sequence( ? , ? ) AS sequencename");
-					stmt.setString(1, getFullname());
-					stmt.setString(2, name);
-					ResultSet rs2 = stmt.executeQuery();
-					if (rs2.next() && rs2.getString("sequencename") != null) {
-						sequenceName = rs2.getString("sequencename").replace(schema.getName() + ".", "");
-					} else {
-						sequenceName = null;
-					}
-					rs2.close();
-				} finally {
-					if (stmt != null) stmt.close();
-				}
+			String sequence = isAutoincrement ? rs.getString("sequencename") : null;
+			if (sequence != null) {
+				sequenceName = sequence.replace(schema.getName() + ".", "");
 			} else sequenceName = null;
 		}
 
+		private Column(DataInputStream in) throws IOException {
+			position = in.readInt();
+			name = CatalogSnapshot.readString(in);
+			typeName = CatalogSnapshot.readString(in);
+			columnSize = in.readInt();
+			decimalDigits = in.readInt();
+			nullable = in.readInt();
+			defaultValue = CatalogSnapshot.readString(in);
+			isAutoincrement = in.readBoolean();
+			sequenceName = CatalogSnapshot.readString(in);
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(position);
+			CatalogSnapshot.writeString(out, name);
+			CatalogSnapshot.writeString(out, typeName);
+			out.writeInt(columnSize);
+			out.writeInt(decimalDigits);
+			out.writeInt(nullable);
+			CatalogSnapshot.writeString(out, defaultValue);
+			out.writeBoolean(isAutoincrement);
+			CatalogSnapshot.writeString(out, sequenceName);
+		}
+
 		private StringBuilder appendSql(StringBuilder buf) {
 			buf.append(name).append(" ");
 			buf.append(typeName);
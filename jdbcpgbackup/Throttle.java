@@ -0,0 +1,207 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/*
+ * Limits the load a dump puts on a shared server, with token buckets for the COPY
+ * data read per second and for the catalog queries run per second. Connections are
+ * wrapped so that every statement prepared on them takes a query token, and the COPY
+ * data read on a wrapped connection takes byte tokens. Optionally, a monitor thread
+ * checks the server every few seconds on its own connection, and halves the rates
+ * while there are more active backends or more replication replay lag than allowed,
+ * raising them again step by step once the server is quiet.
+ */
+public final class Throttle {
+
+	private static final long MONITOR_INTERVAL = 5000; // ms
+	private static final double MIN_FACTOR = 0.1;
+
+	private final Bucket bytes;
+	private final Bucket queries;
+	private int maxActive = 0;
+	private double maxLag = 0;
+	private volatile double factor = 1.0;
+	private volatile double lowest = 1.0;
+	private volatile SQLException monitorError = null;
+	private Thread monitor = null;
+
+	// 0 for no limit
+	public Throttle(long bytesPerSecond, int queriesPerSecond) {
+		bytes = new Bucket(bytesPerSecond);
+		queries = new Bucket(queriesPerSecond);
+	}
+
+	// slow down while more than maxActive backends are active, counting the dump's own, 0 to ignore
+	public void setMaxActive(int maxActive) {
+		this.maxActive = maxActive;
+	}
+
+	// slow down while a replica is more than maxLag seconds behind, 0 to ignore
+	public void setMaxLag(double maxLag) {
+		this.maxLag = maxLag;
+	}
+
+	private static final class Bucket {
+		private final double rate; // per second
+		private double tokens;
+		private long last = System.nanoTime();
+
+		private Bucket(double rate) {
+			this.rate = rate;
+			this.tokens = rate;
+		}
+
+		// takes n tokens, waiting until the debt is paid off if there are not enough
+		private synchronized void acquire(long n, double factor) throws InterruptedException {
+			if (rate <= 0) return;
+			double r = rate * factor;
+			long now = System.nanoTime();
+			tokens = Math.min(r, tokens + (now - last) * r / 1e9); // burst of at most one second
+			last = now;
+			tokens -= n;
+			if (tokens < 0) {
+				long wait = (long)(-tokens / r * 1e9);
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+		}
+	}
+
+	void copied(long n) throws InterruptedIOException {
+		try {
+			bytes.acquire(n, factor);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("interrupted while throttling");
+		}
+	}
+
+	void queried() {
+		try {
+			queries.acquire(1, factor);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static final class Handler implements InvocationHandler {
+		private final Connection con;
+		private final Throttle throttle;
+
+		private Handler(Connection con, Throttle throttle) {
+			this.con = con;
+			this.throttle = throttle;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			String name = method.getName();
+			if (name.equals("prepareStatement") || name.equals("createStatement") || name.equals("prepareCall"))
+				throttle.queried();
+			try {
+				return method.invoke(con, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+
+	// a connection taking a query token for every statement, returned as is if already throttled
+	Connection wrap(Connection con) {
+		if (of(con) != null) return con;
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		for (Class<?> c = con.getClass(); c != null; c = c.getSuperclass()) {
+			for (Class<?> i : c.getInterfaces()) {
+				interfaces.add(i);
+			}
+		}
+		return (Connection)Proxy.newProxyInstance(con.getClass().getClassLoader(),
+				interfaces.toArray(new Class<?>[interfaces.size()]), new Handler(con, this));
+	}
+
+	// the throttle of a wrapped connection, or null
+	static Throttle of(Connection con) {
+		if (!Proxy.isProxyClass(con.getClass())) return null;
+		InvocationHandler handler = Proxy.getInvocationHandler(con);
+		return handler instanceof Handler ? ((Handler)handler).throttle : null;
+	}
+
+	// another connection to the same server, throttled together with con if it is
+	static Connection wrapLike(Connection con, Connection other) {
+		Throttle throttle = of(con);
+		return throttle == null ? other : throttle.wrap(other);
+	}
+
+	// starts the monitor thread if any server limits are set
+	void start(final String jdbcUrl) {
+		if (maxActive <= 0 && maxLag <= 0) return;
+		monitor = new Thread("throttle-monitor") {
+			@Override
+			public void run() {
+				Connection con = null;
+				try {
+					con = DriverManager.getConnection(jdbcUrl);
+					con.setAutoCommit(true);
+					while (!isInterrupted()) {
+						adapt(con);
+						Thread.sleep(MONITOR_INTERVAL);
+					}
+				} catch (InterruptedException e) {
+					// stopped
+				} catch (SQLException e) {
+					monitorError = e; // the rates stay where they are
+				} finally {
+					try {
+						if (con != null) con.close();
+					} catch (SQLException ignore) {}
+				}
+			}
+		};
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+
+	void stop() {
+		if (monitor == null) return;
+		monitor.interrupt();
+		try {
+			monitor.join();
+		} catch (InterruptedException ignore) {}
+		monitor = null;
+		ZipBackup.debug("throttle went down to " + Math.round(lowest * 100) + "% of the rates" +
+				(monitorError == null ? "" : ", monitor failed: " + monitorError.getMessage()));
+	}
+
+	private void adapt(Connection con) throws SQLException {
+		PreparedStatement stmt = null;
+		try {
+			stmt = con.prepareStatement(
+					"SELECT (SELECT count(*) FROM pg_stat_activity " +
+							"WHERE state = 'active' AND pid <> pg_backend_pid()) AS active, " +
+							"CASE WHEN pg_is_in_recovery() " +
+							"THEN COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()), 0) " +
+					"ELSE 0 END AS lag");
+			ResultSet rs = stmt.executeQuery();
+			rs.next();
+			int active = rs.getInt("active");
+			double lag = rs.getDouble("lag");
+			rs.close();
+			boolean busy = (maxActive > 0 && active > maxActive) || (maxLag > 0 && lag > maxLag);
+			factor = busy ? Math.max(MIN_FACTOR, factor / 2) : Math.min(1.0, factor + MIN_FACTOR);
+			lowest = Math.min(lowest, factor);
+		} finally {
+			if (stmt != null) stmt.close();
+		}
+	}
+
+}
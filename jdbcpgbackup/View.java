@@ -2,6 +2,9 @@
 
 package jdbcpgbackup;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -62,11 +65,13 @@ final class View extends DbBackupObject {
 
 		@Override
 		protected final PreparedStatement getAllStatement(Connection con) throws SQLException {
-			return con.prepareStatement(
+			PreparedStatement stmt = con.prepareStatement(
 					"SELECT c.relnamespace AS schema_oid, c.relname AS viewname, pg_get_userbyid(c.relowner) AS viewowner, " +
 							"pg_get_viewdef(c.oid) AS definition " +
 							"FROM pg_class c " +
-					"WHERE c.relkind = 'v'::\"char\"");
+					"WHERE c.relkind = 'v'::\"char\" AND c.relnamespace = ANY (?)");
+			stmt.setArray(1, getSchemaOids(con));
+			return stmt;
 			/*
 					"SELECT * FROM pg_views " +
 							"WHERE schemaname NOT LIKE 'pg_%' " +
@@ -90,6 +95,18 @@ final class View extends DbBackupObject {
 		this.definition = definition;
 	}
 
+	// for a CatalogSnapshot
+	void write(DataOutputStream out) throws IOException {
+		CatalogSnapshot.writeString(out, name);
+		CatalogSnapshot.writeString(out, owner);
+		CatalogSnapshot.writeString(out, definition);
+	}
+
+	static View read(DataInputStream in, Schema schema) throws IOException {
+		return new View(CatalogSnapshot.readString(in), schema, CatalogSnapshot.readString(in),
+				CatalogSnapshot.readString(in));
+	}
+
 	@Override
 	protected StringBuilder appendCreateSql(StringBuilder buf) {
 		buf.append("CREATE VIEW ");
@@ -0,0 +1,309 @@
+/*	Copyright (c) 2012	Tomislav Gountchev <tomi@gountchev.net>	*/
+
+package jdbcpgbackup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A backup split into volumes, each an ordinary backup archive of some of the
+ * schemas, so that they can be written, copied, checked and restored independently
+ * and at the same time. The backup file itself is a small text manifest: a header
+ * line, then a tab separated line for each volume with its file name, in the same
+ * directory as the manifest, its size in bytes, its SHA-256, and the comma separated
+ * schemas in it. A %, comma, tab, carriage return or newline in a schema name, all
+ * legal in quoted identifiers, is written as % and its two hex digits.
+ */
+final class Volumes {
+
+	static final String HEADER = "# jdbcpgbackup volumes";
+
+	static final class Volume {
+
+		final File file;
+		final List<String> schemas;
+		final int shard; // the index of the source it is dumped from, in the list planned
+		private long size = -1;
+		private String sha256 = null;
+
+		private Volume(File file, List<String> schemas, int shard) {
+			this.file = file;
+			this.schemas = schemas;
+			this.shard = shard;
+		}
+
+		// records the size and digest of what is written, for the manifest, once closed
+		OutputStream output(OutputStream out) {
+			final MessageDigest digest = sha256();
+			return new FilterOutputStream(out) {
+				private long count = 0;
+
+				@Override
+				public void write(int b) throws IOException {
+					out.write(b);
+					digest.update((byte)b);
+					count++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+					digest.update(b, off, len);
+					count += len;
+				}
+
+				@Override
+				public void close() throws IOException {
+					super.close();
+					size = count;
+					sha256 = toHex(digest.digest());
+				}
+			};
+		}
+
+		// against the size and digest in the manifest
+		void verify() throws IOException {
+			if (file.length() != size)
+				throw new IOException("volume " + file + " has " + file.length() + " bytes instead of " + size);
+			MessageDigest digest = sha256();
+			InputStream is = new FileInputStream(file);
+			try {
+				byte[] buf = new byte[1 << 16];
+				int n;
+				while ((n = is.read(buf)) != -1) {
+					digest.update(buf, 0, n);
+				}
+			} finally {
+				is.close();
+			}
+			if (!toHex(digest.digest()).equals(sha256))
+				throw new IOException("volume " + file + " does not match its checksum");
+		}
+
+	}
+
+	private final File manifest;
+	private final List<Volume> volumes;
+
+	private Volumes(File manifest, List<Volume> volumes) {
+		this.manifest = manifest;
+		this.volumes = volumes;
+	}
+
+	List<Volume> getVolumes() {
+		return Collections.unmodifiableList(volumes);
+	}
+
+	/*
+	 * Splits the schemas, in the given order, into volumes of at most maxSchemas
+	 * schemas and at most maxBytes of estimated size, 0 for no limit. A schema larger
+	 * than maxBytes gets a volume of its own, schemas are never split.
+	 */
+	static Volumes plan(File manifest, List<String> schemas, Map<String,Long> sizes, long maxBytes, int maxSchemas) {
+		return planShards(manifest, Collections.singletonList(schemas), sizes, maxBytes, maxSchemas);
+	}
+
+	// as above, each shard into volumes of its own, numbered on from those of the previous shard
+	static Volumes planShards(File manifest, List<List<String>> shards, Map<String,Long> sizes, long maxBytes,
+			int maxSchemas) {
+		List<Volume> volumes = new ArrayList<Volume>();
+		for (int shard = 0; shard < shards.size(); shard++) {
+			List<String> group = new ArrayList<String>();
+			long groupSize = 0;
+			for (String schema : shards.get(shard)) {
+				long schemaSize = size(sizes, schema);
+				if (!group.isEmpty() && ((maxSchemas > 0 && group.size() >= maxSchemas)
+						|| (maxBytes > 0 && groupSize + schemaSize > maxBytes))) {
+					volumes.add(new Volume(volumeFile(manifest, volumes.size()), group, shard));
+					group = new ArrayList<String>();
+					groupSize = 0;
+				}
+				group.add(schema);
+				groupSize += schemaSize;
+			}
+			if (!group.isEmpty()) volumes.add(new Volume(volumeFile(manifest, volumes.size()), group, shard));
+		}
+		return new Volumes(manifest, volumes);
+	}
+
+	/*
+	 * Splits the schemas into n shards of about the same estimated size, each largest
+	 * remaining schema going to the shard with the least so far. The schemas of each
+	 * shard keep their given order.
+	 */
+	static List<List<String>> shard(List<String> schemas, final Map<String,Long> sizes, int n) {
+		List<String> bySize = new ArrayList<String>(schemas);
+		Collections.sort(bySize, new Comparator<String>() {
+			public int compare(String s1, String s2) {
+				long size1 = size(sizes, s1);
+				long size2 = size(sizes, s2);
+				return size1 < size2 ? 1 : size1 > size2 ? -1 : 0;
+			}
+		});
+		long[] shardSizes = new long[n];
+		Map<String,Integer> shardOf = new HashMap<String,Integer>();
+		for (String schema : bySize) {
+			int smallest = 0;
+			for (int i = 1; i < n; i++) {
+				if (shardSizes[i] < shardSizes[smallest]) smallest = i;
+			}
+			shardSizes[smallest] += size(sizes, schema);
+			shardOf.put(schema, smallest);
+		}
+		List<List<String>> shards = new ArrayList<List<String>>();
+		for (int i = 0; i < n; i++) {
+			shards.add(new ArrayList<String>());
+		}
+		for (String schema : schemas) {
+			shards.get(shardOf.get(schema)).add(schema);
+		}
+		return shards;
+	}
+
+	private static long size(Map<String,Long> sizes, String schema) {
+		Long size = sizes.get(schema);
+		return size == null ? 0 : size;
+	}
+
+	private static File volumeFile(File manifest, int i) {
+		return new File(manifest.getAbsoluteFile().getParentFile(), manifest.getName() + String.format(".%04d.zip", i + 1));
+	}
+
+	static boolean isManifest(File file) {
+		if (!file.isFile()) return false;
+		try {
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try {
+				return HEADER.equals(reader.readLine());
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static Volumes read(File manifest) throws IOException {
+		List<Volume> volumes = new ArrayList<Volume>();
+		BufferedReader reader = new BufferedReader(new FileReader(manifest));
+		try {
+			if (!HEADER.equals(reader.readLine())) throw new IOException(manifest + " is not a volume manifest");
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0) continue;
+				String[] fields = line.split("\t", -1);
+				if (fields.length != 4) throw new IOException("invalid manifest line: " + line);
+				List<String> schemas = new ArrayList<String>();
+				if (fields[3].length() > 0) {
+					for (String schema : fields[3].split(",", -1)) {
+						schemas.add(unescape(schema));
+					}
+				}
+				Volume volume = new Volume(new File(manifest.getAbsoluteFile().getParentFile(), fields[0]), schemas, 0);
+				volume.size = Long.parseLong(fields[1]);
+				volume.sha256 = fields[2];
+				volumes.add(volume);
+			}
+		} finally {
+			reader.close();
+		}
+		return new Volumes(manifest, volumes);
+	}
+
+	// once all volumes have been written
+	void write() throws IOException {
+		PrintStream ps = new PrintStream(new FileOutputStream(manifest), false, "UTF-8");
+		try {
+			ps.print(HEADER + "\n");
+			for (Volume volume : volumes) {
+				if (volume.sha256 == null) throw new IOException("volume " + volume.file + " not written");
+				StringBuilder buf = new StringBuilder();
+				buf.append(volume.file.getName()).append("\t").append(volume.size).append("\t");
+				buf.append(volume.sha256).append("\t");
+				for (String schema : volume.schemas) {
+					buf.append(escape(schema)).append(",");
+				}
+				if (!volume.schemas.isEmpty()) buf.deleteCharAt(buf.length() - 1);
+				ps.print(buf.append("\n"));
+			}
+		} finally {
+			ps.close();
+		}
+		if (ps.checkError()) throw new IOException("error writing manifest " + manifest);
+	}
+
+	List<String> getSchemas() {
+		List<String> schemas = new ArrayList<String>();
+		for (Volume volume : volumes) {
+			schemas.addAll(volume.schemas);
+		}
+		return schemas;
+	}
+
+	Volume find(String schema) {
+		for (Volume volume : volumes) {
+			if (volume.schemas.contains(schema)) return volume;
+		}
+		throw new RuntimeException("schema " + schema + " not found in backup");
+	}
+
+	private static String escape(String schema) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < schema.length(); i++) {
+			char c = schema.charAt(i);
+			if (c == '%' || c == ',' || c == '\t' || c == '\r' || c == '\n') buf.append(String.format("%%%02X", (int)c));
+			else buf.append(c);
+		}
+		return buf.toString();
+	}
+
+	// a % not followed by two hex digits is kept as it is, as in manifests written before escaping
+	private static String unescape(String schema) {
+		StringBuilder buf = new StringBuilder();
+		for (int i = 0; i < schema.length(); i++) {
+			char c = schema.charAt(i);
+			if (c == '%' && i + 2 < schema.length() && isHex(schema.charAt(i + 1)) && isHex(schema.charAt(i + 2))) {
+				buf.append((char)Integer.parseInt(schema.substring(i + 1, i + 3), 16));
+				i += 2;
+			} else buf.append(c);
+		}
+		return buf.toString();
+	}
+
+	private static boolean isHex(char c) {
+		return Character.digit(c, 16) >= 0;
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder buf = new StringBuilder();
+		for (byte b : bytes) {
+			buf.append(String.format("%02x", b & 0xff));
+		}
+		return buf.toString();
+	}
+
+}
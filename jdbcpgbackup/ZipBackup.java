@@ -2,35 +2,53 @@
 
 package jdbcpgbackup;
 
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.channels.Channels;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
 public final class ZipBackup {
 
 	private static final String zipRoot = "pg_backup/";
 	public static final int DEFAULT_BATCH_SIZE = 10000;
+	public static final int DEFAULT_PARALLELISM = 4;
 
 	private final String jdbcUrl;
 	private final File file;
@@ -42,6 +60,25 @@ public final class ZipBackup {
 	private DBOFactory<Index> indexFactory = new Index.IndexFactory();
 	private DBOFactory<Constraint> constraintFactory = new Constraint.ConstraintFactory();
 
+	private LoadProfile loadProfile = LoadProfile.DEFAULT;
+	private long blockCompressionThreshold = 0;
+	private long ctidChunksThreshold = 0;
+	private int parallelism = DEFAULT_PARALLELISM;
+	private boolean useDdlTemplates = false;
+	private int compactThreshold = 0;
+	private Throttle throttle = null;
+	private long syncInterval = ChannelOutputStream.SYNC_ON_CLOSE;
+	private long volumeSize = 0;
+	private int volumeSchemas = 0;
+	private List<String> replicaUrls = new ArrayList<String>();
+	private boolean isVolume = false; // one volume of a backup, dumped or restored as part of the whole
+	private boolean useFingerprints = false;
+	private File catalogFile = null; // the catalog snapshot of full dumps
+	private DdlTemplates ddlTemplates = null; // during a dump
+	private Fingerprints fingerprints = null; // during a dump
+	private final Map<String,List<String>> templateCache =
+			Collections.synchronizedMap(new HashMap<String,List<String>>()); // also read by parallel restores
+
 	public ZipBackup(File file, String jdbcUrl) {
 		this.file = file;
 		this.jdbcUrl = jdbcUrl;
@@ -50,6 +87,140 @@ public final class ZipBackup {
 	public ZipBackup(Map<String,String> params) {
 		this(params.get("filename") == null ? null : new File(params.get("filename")),
 				buildJdbcUrl(params));
+		setLoadProfile(LoadProfile.forName(params.get("profile")));
+		if (params.get("blockcompression") != null)
+			setBlockCompressionThreshold(Long.parseLong(params.get("blockcompression")) << 20);
+		if (params.get("ctidchunks") != null)
+			setCtidChunksThreshold(Long.parseLong(params.get("ctidchunks")) << 20);
+		if (params.get("jobs") != null)
+			setParallelism(Integer.parseInt(params.get("jobs")));
+		setDdlTemplates("true".equals(params.get("templates")));
+		setFingerprints("true".equals(params.get("fingerprints")));
+		if (params.get("catalog") != null)
+			setCatalogSnapshot(new File(params.get("catalog")));
+		setThrottle(buildThrottle(params));
+		if (params.get("compact") != null)
+			setCompactThreshold(Integer.parseInt(params.get("compact")) << 10);
+		String fsync = params.get("fsync");
+		if ("none".equals(fsync))
+			setSyncInterval(ChannelOutputStream.SYNC_NEVER);
+		else if (fsync != null && !"close".equals(fsync))
+			setSyncInterval(Long.parseLong(fsync) << 20);
+		if (params.get("volumesize") != null)
+			setVolumeSize(Long.parseLong(params.get("volumesize")) << 20);
+		if (params.get("volumeschemas") != null)
+			setVolumeSchemas(Integer.parseInt(params.get("volumeschemas")));
+		if (params.get("replicas") != null) {
+			List<String> urls = new ArrayList<String>();
+			for (String replica : params.get("replicas").split(",")) {
+				urls.add(buildJdbcUrl(hostParams(params, replica)));
+			}
+			setReplicas(urls);
+		}
+	}
+
+	// the same settings, for a volume of this backup
+	private ZipBackup forVolume(File volumeFile) {
+		return forVolume(volumeFile, jdbcUrl);
+	}
+
+	// dumped from the given source
+	private ZipBackup forVolume(File volumeFile, String sourceUrl) {
+		ZipBackup volume = new ZipBackup(volumeFile, sourceUrl);
+		volume.loadProfile = loadProfile;
+		volume.blockCompressionThreshold = blockCompressionThreshold;
+		volume.ctidChunksThreshold = ctidChunksThreshold;
+		volume.parallelism = parallelism;
+		volume.useDdlTemplates = useDdlTemplates;
+		volume.compactThreshold = compactThreshold;
+		volume.useFingerprints = useFingerprints;
+		volume.syncInterval = syncInterval;
+		volume.isVolume = true;
+		return volume;
+	}
+
+	public void setLoadProfile(LoadProfile loadProfile) {
+		this.loadProfile = loadProfile;
+	}
+
+	// tables at least this large on disk are compressed in parallel blocks, 0 to disable
+	public void setBlockCompressionThreshold(long bytes) {
+		this.blockCompressionThreshold = bytes;
+	}
+
+	// tables at least this large on disk are dumped in ctid ranges on parallel connections, 0 to disable
+	public void setCtidChunksThreshold(long bytes) {
+		this.ctidChunksThreshold = bytes;
+	}
+
+	// store identical schema definitions only once when dumping
+	public void setDdlTemplates(boolean useDdlTemplates) {
+		this.useDdlTemplates = useDdlTemplates;
+	}
+
+	// store a fingerprint of each schema when dumping, for restoreChanged
+	public void setFingerprints(boolean useFingerprints) {
+		this.useFingerprints = useFingerprints;
+	}
+
+	/*
+	 * Keep the catalog of full dumps in this file, and load only the schemas that have
+	 * changed since the previous full dump, taking the others from it. See CatalogSnapshot.
+	 */
+	public void setCatalogSnapshot(File catalogFile) {
+		this.catalogFile = catalogFile;
+	}
+
+	// use the compact archive layout, packing tables with less than this many bytes of data, 0 to disable
+	public void setCompactThreshold(int bytes) {
+		this.compactThreshold = bytes;
+	}
+
+	// limits the load of a dump on the server, null for no limits
+	public void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+
+	/*
+	 * When the backup file is forced to the disk: SYNC_NEVER (-1) leaves it to the
+	 * operating system, SYNC_ON_CLOSE (0), the default, once at the end, otherwise
+	 * also after each this many bytes.
+	 */
+	public void setSyncInterval(long bytes) {
+		this.syncInterval = bytes;
+	}
+
+	/*
+	 * Dump into volumes of at most this many bytes of table data, estimated from the
+	 * size on disk, instead of a single archive, 0 for no limit. See Volumes.
+	 */
+	public void setVolumeSize(long bytes) {
+		this.volumeSize = bytes;
+	}
+
+	// dump into volumes of at most this many schemas, 0 for no limit
+	public void setVolumeSchemas(int count) {
+		this.volumeSchemas = count;
+	}
+
+	/*
+	 * Dump from these replicas of the same primary as well, each dumping a share of
+	 * the schemas into volumes of its own. See dumpReplicas.
+	 */
+	public void setReplicas(List<String> jdbcUrls) {
+		this.replicaUrls = new ArrayList<String>(jdbcUrls);
+	}
+
+	private boolean isVolumeMode() {
+		if (volumeSize <= 0 && volumeSchemas <= 0 && replicaUrls.isEmpty()) return false;
+		if (file == null) throw new RuntimeException("volumes require a backup file");
+		return true;
+	}
+
+	// number of connections used for work done in parallel
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) throw new RuntimeException("invalid parallelism: " + parallelism);
+		this.parallelism = parallelism;
 	}
 
 	public void dumpAll(DataFilter dataFilter) {
@@ -57,16 +228,28 @@ public final class ZipBackup {
 	}
 
 	public void dumpAll(DataFilter dataFilter, int batchSize) {
+		if (isVolumeMode()) { // volumes are dumped schema by schema, in one snapshot of each source
+			dump(null, dataFilter);
+			return;
+		}
 		debug("starting full dump at " + new Date());
 		Schema.CachingSchemaFactory cachingSchemaFactory = new Schema.CachingSchemaFactory();
 		schemaFactory = cachingSchemaFactory;
 		Connection con = null;
 		ZipOutputStream zos = null;
+		// the catalog of the next batch is loaded on a second connection while the current one is dumped
+		ExecutorService prefetcher = parallelism > 1 ? Executors.newSingleThreadExecutor() : null;
+		ExecutorService catalogLoader = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+		CatalogSnapshot snapshot = null;
 		try {
+			if (catalogFile != null) snapshot = new CatalogSnapshot(catalogFile);
 			zos = getZipOutputStream();
-			con = DriverManager.getConnection(jdbcUrl);
+			ddlTemplates = useDdlTemplates ? new DdlTemplates() : null;
+			fingerprints = useFingerprints ? new Fingerprints() : null;
+			con = throttle(DriverManager.getConnection(jdbcUrl));
 			con.setReadOnly(true);
 			con.setAutoCommit(true);
+			if (throttle != null) throttle.start(jdbcUrl);
 			timerStart("schemas");
 			Collection<Schema> schemas = cachingSchemaFactory.getDbBackupObjects(con, null);
 			setTotalCount(schemas.size());
@@ -74,27 +257,43 @@ public final class ZipBackup {
 			debug(schemas.size() + " schemas to be dumped");
 			timerEnd("schemas");
 			debug("begin dumping schemas");
-			Collection<Schema> batch;
-			while (! (batch = cachingSchemaFactory.nextBatch(con, batchSize)).isEmpty()) {
-				viewFactory = new View.CachingViewFactory(cachingSchemaFactory);
-				tableFactory = new Table.CachingTableFactory(cachingSchemaFactory);
-				sequenceFactory = new Sequence.CachingSequenceFactory(cachingSchemaFactory);
-				indexFactory = new Index.CachingIndexFactory(cachingSchemaFactory, (Table.CachingTableFactory)tableFactory);
-				constraintFactory = new Constraint.CachingConstraintFactory(cachingSchemaFactory, (Table.CachingTableFactory)tableFactory);
+			Collection<Schema> batch = cachingSchemaFactory.nextBatch(con, batchSize);
+			Future<Catalog> next = batch.isEmpty() ? null :
+				loadCatalog(cachingSchemaFactory, snapshot, con, prefetcher, catalogLoader);
+			while (!batch.isEmpty()) {
+				timerStart("catalog wait");
+				Catalog catalog = Futures.get(next);
+				timerEnd("catalog wait");
+				viewFactory = catalog.viewFactory;
+				tableFactory = catalog.tableFactory;
+				sequenceFactory = catalog.sequenceFactory;
+				indexFactory = catalog.indexFactory;
+				constraintFactory = catalog.constraintFactory;
+				Collection<Schema> following = cachingSchemaFactory.nextBatch(con, batchSize);
+				next = following.isEmpty() ? null :
+					loadCatalog(cachingSchemaFactory, snapshot, con, prefetcher, catalogLoader);
 				for (Schema schema : batch) {
 					dump(schema, dataFilter, con, zos);
 				}
+				catalog.save(con);
 				con.close();
-				con = DriverManager.getConnection(jdbcUrl);
+				con = throttle(DriverManager.getConnection(jdbcUrl));
 				con.setReadOnly(true);
 				con.setAutoCommit(true);
+				batch = following;
 			}
+			putFingerprints(zos);
+			if (snapshot != null) snapshot.commit();
 			printTimings();
 		} catch (SQLException e) {
 			throw new RuntimeException(e.getMessage(), e);
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage(), e);
 		} finally {
+			if (prefetcher != null) prefetcher.shutdownNow();
+			if (catalogLoader != null) catalogLoader.shutdownNow();
+			if (snapshot != null) snapshot.close();
+			if (throttle != null) throttle.stop();
 			try {
 				if (con != null) con.close();
 			} catch (SQLException ignore) {}
@@ -107,7 +306,38 @@ public final class ZipBackup {
 		debug("finished full dump at " + new Date());
 	}
 
+	/*
+	 * The factories for the current batch of schemaFactory. With an executor, they are
+	 * loaded there, running their queries at the same time on the loader's threads,
+	 * otherwise they load lazily on the dump connection as the batch is dumped. With a
+	 * snapshot, the schemas that have not changed are taken from it first.
+	 */
+	private Future<Catalog> loadCatalog(Schema.CachingSchemaFactory schemaFactory, CatalogSnapshot snapshot,
+			final Connection con, ExecutorService executor, final ExecutorService loader) {
+		final Catalog catalog = new Catalog(schemaFactory, snapshot);
+		if (executor == null) {
+			FutureTask<Catalog> lazy = new FutureTask<Catalog>(new Callable<Catalog>() {
+				public Catalog call() throws SQLException {
+					catalog.reuse(con);
+					return catalog;
+				}
+			});
+			lazy.run();
+			return lazy;
+		}
+		return executor.submit(new Callable<Catalog>() {
+			public Catalog call() throws IOException, SQLException {
+				catalog.load(jdbcUrl, con, loader);
+				return catalog;
+			}
+		});
+	}
+
 	public void dump(Iterable<String> schemaNames, DataFilter dataFilter) {
+		if (!replicaUrls.isEmpty()) {
+			dumpReplicas(schemaNames, dataFilter);
+			return;
+		}
 		Connection con = null;
 		try {
 			con = DriverManager.getConnection(jdbcUrl);
@@ -124,30 +354,35 @@ public final class ZipBackup {
 		}
 	}
 
+	// all schemas if schemaNames is null
 	public void dump(Iterable<String> schemaNames, DataFilter dataFilter, Connection con) {
+		if (isVolumeMode()) {
+			dumpVolumes(schemaNames, dataFilter, con);
+			return;
+		}
 		ZipOutputStream zos = null;
+		con = throttle(con);
 		try {
+			if (throttle != null) throttle.start(jdbcUrl);
 			zos = getZipOutputStream();
+			ddlTemplates = useDdlTemplates ? new DdlTemplates() : null;
+			fingerprints = useFingerprints ? new Fingerprints() : null;
 			timerStart("schemas");
-			List<Schema> schemas = new ArrayList<Schema>();
-			for (String schemaName : schemaNames) {
-				Schema schema = schemaFactory.getDbBackupObject(con, schemaName, null);
-				if (schema == null) 
-					throw new RuntimeException("schema " + schemaName + " not found in database");
-				schemas.add(schema);
-			}
+			List<Schema> schemas = getSchemas(schemaNames, con);
 			setTotalCount(schemas.size());
 			dumpSchemasSql(schemas, dataFilter, con, zos);
 			timerEnd("schemas");
 			for (Schema schema : schemas) {
 				dump(schema, dataFilter, con, zos);
 			}
+			putFingerprints(zos);
 			printTimings();
 		} catch (SQLException e) {
 			throw new RuntimeException(e.getMessage(), e);
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage(), e);
 		} finally {
+			if (throttle != null) throttle.stop();
 			try {
 				if (zos != null) zos.close();
 			} catch (IOException e) {
@@ -156,17 +391,268 @@ public final class ZipBackup {
 		}
 	}
 
+	private List<Schema> getSchemas(Iterable<String> schemaNames, Connection con) throws SQLException {
+		List<Schema> schemas = new ArrayList<Schema>();
+		if (schemaNames == null) {
+			for (Schema schema : schemaFactory.getDbBackupObjects(con, null)) {
+				schemas.add(schema);
+			}
+			return schemas;
+		}
+		for (String schemaName : schemaNames) {
+			Schema schema = schemaFactory.getDbBackupObject(con, schemaName, null);
+			if (schema == null)
+				throw new RuntimeException("schema " + schemaName + " not found in database");
+			schemas.add(schema);
+		}
+		return schemas;
+	}
+
+	/*
+	 * Dumps the schemas into volumes, see Volumes, on up to parallelism connections
+	 * sharing the snapshot of con, each volume written by one of them. The manifest is
+	 * written to the backup file once all volumes are done.
+	 */
+	private void dumpVolumes(Iterable<String> schemaNames, DataFilter dataFilter, Connection con) {
+		con = throttle(con);
+		try {
+			if (file.length() > 0) throw new RuntimeException("destination file is not empty");
+			if (throttle != null) throttle.start(jdbcUrl);
+			timerStart("schemas");
+			List<String> names = new ArrayList<String>();
+			for (Schema schema : getSchemas(schemaNames, con)) {
+				names.add(schema.getName());
+			}
+			if (schemaNames == null) Collections.sort(names);
+			Volumes volumes = Volumes.plan(file, names, Schema.getEstimatedSizes(con), volumeSize, volumeSchemas);
+			setTotalCount(names.size());
+			timerEnd("schemas");
+			debug(names.size() + " schemas to be dumped in " + volumes.getVolumes().size() + " volumes");
+			dumpShard(volumes.getVolumes(), dataFilter, con, jdbcUrl);
+			volumes.write();
+			printTimings();
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			if (throttle != null) throttle.stop();
+		}
+	}
+
+	/*
+	 * Dumps the schemas into volumes as above, split between the sources, the jdbcUrl
+	 * and the replicas, by their estimated size. Each source dumps the volumes of its
+	 * own share, in a snapshot of its own. The replicas must have all replayed the
+	 * primary up to the same point, at the start and still at the end of the dump,
+	 * so that the volumes are as consistent as if dumped from a single one: replay
+	 * is expected to be paused on all of them.
+	 */
+	private void dumpReplicas(Iterable<String> schemaNames, final DataFilter dataFilter) {
+		if (file == null) throw new RuntimeException("replicas require a backup file");
+		final List<String> urls = new ArrayList<String>();
+		urls.add(jdbcUrl);
+		urls.addAll(replicaUrls);
+		final List<Connection> sources = new ArrayList<Connection>();
+		ExecutorService executor = null;
+		try {
+			if (file.length() > 0) throw new RuntimeException("destination file is not empty");
+			for (String url : urls) {
+				Connection source = throttle(DriverManager.getConnection(url));
+				sources.add(source);
+				source.setReadOnly(true);
+				source.setAutoCommit(false);
+				source.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			}
+			String lsn = getReplayLsn(urls, sources); // the first statement, taking the snapshot
+			debug("all sources replayed up to " + lsn);
+			if (throttle != null) throttle.start(jdbcUrl);
+			timerStart("schemas");
+			Connection con = sources.get(0);
+			List<String> names = new ArrayList<String>();
+			for (Schema schema : getSchemas(schemaNames, con)) {
+				names.add(schema.getName());
+			}
+			if (schemaNames == null) Collections.sort(names);
+			Map<String,Long> sizes = Schema.getEstimatedSizes(con);
+			final Volumes volumes = Volumes.planShards(file, Volumes.shard(names, sizes, urls.size()), sizes,
+					volumeSize, volumeSchemas);
+			setTotalCount(names.size());
+			timerEnd("schemas");
+			debug(names.size() + " schemas to be dumped in " + volumes.getVolumes().size() + " volumes from " +
+					urls.size() + " sources");
+			executor = Executors.newFixedThreadPool(urls.size());
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int i = 0; i < urls.size(); i++) {
+				final int shard = i;
+				results.add(executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						List<Volumes.Volume> share = new ArrayList<Volumes.Volume>();
+						for (Volumes.Volume volume : volumes.getVolumes()) {
+							if (volume.shard == shard) share.add(volume);
+						}
+						dumpShard(share, dataFilter, sources.get(shard), urls.get(shard));
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> result : results) {
+				Futures.get(result);
+			}
+			String endLsn = getReplayLsn(urls, sources);
+			if (!lsn.equals(endLsn))
+				throw new RuntimeException("replicas replayed from " + lsn + " to " + endLsn + " during the dump");
+			volumes.write();
+			printTimings();
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			if (executor != null) executor.shutdownNow();
+			if (throttle != null) throttle.stop();
+			for (Connection source : sources) {
+				try {
+					source.close();
+				} catch (SQLException ignore) {}
+			}
+		}
+	}
+
+	// the replay position of the sources, which must all be replicas at the same position
+	private static String getReplayLsn(List<String> urls, List<Connection> sources) throws SQLException {
+		String lsn = null;
+		for (int i = 0; i < sources.size(); i++) {
+			Connection con = sources.get(i);
+			String function = con.getMetaData().getDatabaseMajorVersion() >= 10 ?
+					"pg_last_wal_replay_lsn()" : "pg_last_xlog_replay_location()";
+			PreparedStatement stmt = null;
+			String replayed;
+			try {
+				stmt = con.prepareStatement("SELECT " + function + "::text AS lsn");
+				ResultSet rs = stmt.executeQuery();
+				rs.next();
+				replayed = rs.getString("lsn");
+				rs.close();
+			} finally {
+				if (stmt != null) stmt.close();
+			}
+			String host = urls.get(i);
+			if (host.indexOf('?') >= 0) host = host.substring(0, host.indexOf('?')); // without the credentials
+			if (replayed == null) throw new RuntimeException(host + " is not a replica");
+			if (lsn == null) lsn = replayed;
+			else if (!lsn.equals(replayed))
+				throw new RuntimeException(host + " replayed up to " + replayed + " instead of " + lsn);
+		}
+		return lsn;
+	}
+
+	/*
+	 * Dumps the volumes from the source con, on up to parallelism connections to
+	 * sourceUrl sharing its snapshot, each volume written by one of them.
+	 */
+	private void dumpShard(List<Volumes.Volume> volumes, final DataFilter dataFilter, Connection con,
+			final String sourceUrl) throws SQLException, IOException {
+		ExecutorService executor = null;
+		List<Connection> opened = new ArrayList<Connection>();
+		try {
+			int n = Math.max(1, Math.min(parallelism, volumes.size()));
+			if (n == 1) { // no snapshot to share, and the timings are kept
+				for (Volumes.Volume volume : volumes) {
+					dumpVolume(volume, dataFilter, con, sourceUrl);
+				}
+			} else {
+				String snapshot = CtidChunks.exportSnapshot(con);
+				final BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(n);
+				for (int i = 0; i < n; i++) {
+					Connection worker = Throttle.wrapLike(con, DriverManager.getConnection(sourceUrl));
+					opened.add(worker);
+					worker.setReadOnly(true);
+					worker.setAutoCommit(false);
+					worker.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+					CtidChunks.importSnapshot(worker, snapshot);
+					connections.add(worker);
+				}
+				executor = Executors.newFixedThreadPool(n);
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (final Volumes.Volume volume : volumes) {
+					results.add(executor.submit(new Callable<Void>() {
+						public Void call() throws Exception {
+							Connection worker = connections.take();
+							try {
+								dumpVolume(volume, dataFilter, worker, sourceUrl);
+							} finally {
+								connections.put(worker);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result : results) {
+					Futures.get(result);
+				}
+			}
+		} finally {
+			if (executor != null) executor.shutdownNow();
+			for (Connection worker : opened) {
+				try {
+					worker.close();
+				} catch (SQLException ignore) {}
+			}
+		}
+	}
+
+	// an ordinary archive of the volume's schemas
+	private void dumpVolume(Volumes.Volume volume, DataFilter dataFilter, Connection con, String sourceUrl)
+			throws IOException, SQLException {
+		if (volume.file.length() > 0) throw new RuntimeException("volume file " + volume.file + " is not empty");
+		ZipBackup writer = forVolume(volume.file, sourceUrl);
+		writer.ddlTemplates = useDdlTemplates ? new DdlTemplates() : null;
+		writer.fingerprints = useFingerprints ? new Fingerprints() : null;
+		ZipOutputStream zos = new PipedZipOutputStream(volume.output(writer.getFileOutput()));
+		try {
+			List<Schema> schemas = writer.getSchemas(volume.schemas, con);
+			writer.dumpSchemasSql(schemas, dataFilter, con, zos);
+			for (Schema schema : schemas) {
+				writer.dump(schema, dataFilter, con, zos);
+			}
+			writer.putFingerprints(zos);
+		} finally {
+			zos.close();
+		}
+	}
+
+	private Connection throttle(Connection con) {
+		return throttle == null ? con : throttle.wrap(con);
+	}
+
+	// from the maxrate (megabytes per second), maxqueries, maxactive and maxlag (seconds) parameters
+	static Throttle buildThrottle(Map<String,String> params) {
+		String maxRate = params.get("maxrate");
+		String maxQueries = params.get("maxqueries");
+		if (maxRate == null && maxQueries == null) return null;
+		Throttle throttle = new Throttle(maxRate == null ? 0 : Long.parseLong(maxRate) << 20,
+				maxQueries == null ? 0 : Integer.parseInt(maxQueries));
+		if (params.get("maxactive") != null) throttle.setMaxActive(Integer.parseInt(params.get("maxactive")));
+		if (params.get("maxlag") != null) throttle.setMaxLag(Double.parseDouble(params.get("maxlag")));
+		return throttle;
+	}
+
 	private ZipOutputStream getZipOutputStream() throws IOException {
 		if (file != null) {
 			if (file.length() > 0) {
 				throw new RuntimeException("destination file is not empty");
 			}
-			return new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			return new PipedZipOutputStream(getFileOutput());
 		} else {
-			return new ZipOutputStream(System.out);
+			return new PipedZipOutputStream(new ChannelOutputStream(Channels.newChannel(System.out), syncInterval));
 		}
 	}
 
+	private OutputStream getFileOutput() throws IOException {
+		return new ChannelOutputStream(new FileOutputStream(file).getChannel(), syncInterval);
+	}
+
 	private void dumpSchemasSql(Iterable<Schema> schemas, DataFilter dataFilter, Connection con, ZipOutputStream zos) {
 		try {
 			zos.putNextEntry(new ZipEntry(zipRoot));
@@ -179,43 +665,105 @@ public final class ZipBackup {
 
 	private void dump(Schema schema, DataFilter dataFilter, Connection con, ZipOutputStream zos) {
 		try {
+			Progress.get().schema(schema.getName());
+			Events.schema(schema.getName());
 			String schemaRoot = zipRoot + "schemas/" + schema.getName() + "/";
-			zos.putNextEntry(new ZipEntry(schemaRoot));
+			boolean compact = compactThreshold > 0;
+			if (!compact) zos.putNextEntry(new ZipEntry(schemaRoot));
 
 			timerStart("sequences");
 			Iterable<Sequence> sequences = sequenceFactory.getDbBackupObjects(con, schema);
-			putSqlZipEntry(zos, schemaRoot + "sequences.sql", sequences, dataFilter);
+			String sequencesSql = compact ? getSql(sequences, dataFilter) : null;
+			if (!compact) putSqlZipEntry(zos, schemaRoot + "sequences.sql", sequences, dataFilter);
 			timerEnd("sequences");
 
-			Iterable<Table> tables = tableFactory.getDbBackupObjects(con, schema);
-			putSqlZipEntry(zos, schemaRoot + "tables.sql", tables, dataFilter);
+			List<Table> tables = new ArrayList<Table>();
+			for (Table table : tableFactory.getDbBackupObjects(con, schema)) {
+				tables.add(table);
+			}
+			Collections.sort(tables, Table.LARGEST_FIRST);
+			boolean ddlFirst = compact || ddlTemplates != null;
+			if (ddlFirst) {
+				Map<String,String> sqlByFile = getSortedDdl(schema, tables, dataFilter, con);
+				if (compact) {
+					Map<String,String> sections = new LinkedHashMap<String,String>();
+					sections.put("sequences.sql", sequencesSql);
+					if (ddlTemplates != null) {
+						sections.put(DdlTemplates.REF, ddlTemplates.putTemplates(zos, zipRoot, sqlByFile));
+					} else {
+						sections.putAll(sqlByFile);
+					}
+					CompactLayout.putDdl(zos, schemaRoot, sections);
+				} else {
+					ddlTemplates.put(zos, zipRoot, schemaRoot, sqlByFile);
+				}
+			} else {
+				putSqlZipEntry(zos, schemaRoot + "tables.sql", tables, dataFilter);
+			}
 
 			timerStart("table data");
-			zos.putNextEntry(new ZipEntry(schemaRoot + "tables/"));
+			if (!compact) zos.putNextEntry(new ZipEntry(schemaRoot + "tables/"));
+			CompactLayout.Packer packer = compact ? new CompactLayout.Packer(zos, schemaRoot, compactThreshold) : null;
+			Map<String,Fingerprints.Rows> tableRows = new HashMap<String,Fingerprints.Rows>();
 			for (Table table : tables) {
 				if (dataFilter.dumpData(schema.getName(), table.getName())) {
-					zos.putNextEntry(new ZipEntry(schemaRoot + "tables/" + table.getName()));
-					table.dump(con, zos);
+					if (fingerprints != null) {
+						Fingerprints.Rows rows = new Fingerprints.Rows();
+						table.setFingerprint(rows);
+						tableRows.put(table.getName(), rows);
+					}
+					String tableEntry = schemaRoot + "tables/" + table.getName();
+					if (ctidChunksThreshold > 0 && table.getSize() >= ctidChunksThreshold
+							&& CtidChunks.isSupported(con)) {
+						CtidChunks.dump(table, con, jdbcUrl, parallelism, zos, tableEntry);
+					} else if (blockCompressionThreshold > 0 && table.getSize() >= blockCompressionThreshold) {
+						ParallelGzip.Writer writer = new ParallelGzip.Writer(zos, tableEntry);
+						table.dump(con, writer);
+						writer.close();
+					} else if (packer != null) {
+						packer.dump(table, con, tableEntry);
+					} else {
+						zos.putNextEntry(new ZipEntry(tableEntry));
+						if (!table.isEmpty()) table.dump(con, zos); // empty entry for empty tables, no COPY
+					}
 				}
 			}
+			if (packer != null) packer.finish();
 			timerEnd("table data");
 
-			timerStart("views");
-			Iterable<View> views = viewFactory.getDbBackupObjects(con, schema);
-			putSqlZipEntry(zos, schemaRoot + "views.sql", views, dataFilter);
-			timerEnd("views");
-
-			timerStart("indexes");
-			Iterable<Index> indexes = indexFactory.getDbBackupObjects(con, schema);
-			putSqlZipEntry(zos, schemaRoot + "indexes.sql", indexes, dataFilter);
-			timerEnd("indexes");
+			if (!ddlFirst) {
+				timerStart("views");
+				Iterable<View> views = viewFactory.getDbBackupObjects(con, schema);
+				putSqlZipEntry(zos, schemaRoot + "views.sql", views, dataFilter);
+				timerEnd("views");
+
+				timerStart("indexes");
+				Iterable<Index> indexes = indexFactory.getDbBackupObjects(con, schema);
+				putSqlZipEntry(zos, schemaRoot + "indexes.sql", indexes, dataFilter);
+				timerEnd("indexes");
+
+				timerStart("constraints");
+				Iterable<Constraint> constraints = constraintFactory.getDbBackupObjects(con, schema);
+				putSqlZipEntry(zos, schemaRoot + "constraints.sql", constraints, dataFilter);
+				timerEnd("constraints");
+			}
 
-			timerStart("constraints");
-			Iterable<Constraint> constraints = constraintFactory.getDbBackupObjects(con, schema);
-			putSqlZipEntry(zos, schemaRoot + "constraints.sql", constraints, dataFilter);
-			timerEnd("constraints");
+			if (fingerprints != null) {
+				timerStart("fingerprints");
+				Map<String,String> values = new HashMap<String,String>();
+				for (Map.Entry<String,Fingerprints.Rows> rows : tableRows.entrySet()) {
+					values.put(rows.getKey(), rows.getValue().toString());
+				}
+				for (Sequence sequence : sequences) {
+					if (dataFilter.dumpData(schema.getName(), sequence.getName()))
+						values.put(sequence.getName(), Fingerprints.sequenceValue(sequence));
+				}
+				fingerprints.put(schema.getName(), getCanonicalDdl(schema, con), values);
+				timerEnd("fingerprints");
+			}
 
 			processedSchema();
+			Progress.get().schemaDone();
 
 		} catch (SQLException e) {
 			throw new RuntimeException("error dumping schema " + schema.getName(), e);
@@ -224,6 +772,67 @@ public final class ZipBackup {
 		}
 	}
 
+	// all the schema's ddl goes before the table data, in a stable order so identical schemas get identical sql
+	private Map<String,String> getSortedDdl(Schema schema, List<Table> tables, DataFilter dataFilter,
+			Connection con) throws SQLException {
+		Map<String,String> sqlByFile = new LinkedHashMap<String,String>();
+		sqlByFile.put("tables.sql", getSortedSql(tables, dataFilter));
+		timerStart("views");
+		sqlByFile.put("views.sql", getSortedSql(viewFactory.getDbBackupObjects(con, schema), dataFilter));
+		timerEnd("views");
+		timerStart("indexes");
+		sqlByFile.put("indexes.sql", getSortedSql(indexFactory.getDbBackupObjects(con, schema), dataFilter));
+		timerEnd("indexes");
+		timerStart("constraints");
+		// keys before the foreign keys that may reference them
+		sqlByFile.put("constraints.sql",
+				getSql(Constraint.sort(constraintFactory.getDbBackupObjects(con, schema)), dataFilter));
+		timerEnd("constraints");
+		return sqlByFile;
+	}
+
+	// the definitions of the schema in con, without data, sorted as for the fingerprints
+	private String getCanonicalDdl(Schema schema, Connection con) throws SQLException {
+		StringBuilder buf = new StringBuilder();
+		buf.append(getSortedSql(sequenceFactory.getDbBackupObjects(con, schema), DataFilter.NO_DATA));
+		buf.append(getSortedSql(tableFactory.getDbBackupObjects(con, schema), DataFilter.NO_DATA));
+		buf.append(getSortedSql(viewFactory.getDbBackupObjects(con, schema), DataFilter.NO_DATA));
+		buf.append(getSortedSql(indexFactory.getDbBackupObjects(con, schema), DataFilter.NO_DATA));
+		buf.append(getSql(Constraint.sort(constraintFactory.getDbBackupObjects(con, schema)), DataFilter.NO_DATA));
+		return buf.toString();
+	}
+
+	private void putFingerprints(ZipOutputStream zos) throws IOException {
+		if (fingerprints == null) return;
+		zos.putNextEntry(new ZipEntry(zipRoot + Fingerprints.ENTRY));
+		fingerprints.write(zos);
+	}
+
+	private static String getSortedSql(Iterable<? extends DbBackupObject> dbBackupObjects, DataFilter dataFilter) {
+		List<DbBackupObject> sorted = new ArrayList<DbBackupObject>();
+		for (DbBackupObject o : dbBackupObjects) {
+			sorted.add(o);
+		}
+		Collections.sort(sorted, new Comparator<DbBackupObject>() {
+			public int compare(DbBackupObject a, DbBackupObject b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		StringBuilder buf = new StringBuilder();
+		for (DbBackupObject o : sorted) {
+			buf.append(o.getSql(dataFilter));
+		}
+		return buf.toString();
+	}
+
+	private static String getSql(Iterable<? extends DbBackupObject> dbBackupObjects, DataFilter dataFilter) {
+		StringBuilder buf = new StringBuilder();
+		for (DbBackupObject o : dbBackupObjects) {
+			buf.append(o.getSql(dataFilter));
+		}
+		return buf.toString();
+	}
+
 	private void putSqlZipEntry(ZipOutputStream zos, String name,
 			Iterable<? extends DbBackupObject> dbBackupObjects, DataFilter dataFilter) throws IOException {
 		zos.putNextEntry(new ZipEntry(name));
@@ -234,8 +843,10 @@ public final class ZipBackup {
 
 
 	public List<String> schemasInBackup() {
+		if (file == null) throw new RuntimeException("listing the schemas in a backup requires a backup file");
 		ZipFile zipFile = null;
 		try {
+			if (Volumes.isManifest(file)) return Volumes.read(file).getSchemas();
 			zipFile = new ZipFile(file);
 			return new ArrayList<String>(getSchemaTables(zipFile).keySet());
 		} catch (IOException e) {
@@ -252,6 +863,10 @@ public final class ZipBackup {
 	}
 
 	public void restoreSchemaTo(String schema, String toSchema) {
+		if (file == null) {
+			restoreStream(System.in, Collections.singletonMap(schema, toSchema));
+			return;
+		}
 		Connection con = null;
 		try {
 			con = DriverManager.getConnection(jdbcUrl);
@@ -273,9 +888,21 @@ public final class ZipBackup {
 	public void restoreSchemaTo(String schema, String toSchema, Connection con) {
 		ZipFile zipFile = null;
 		try {
+			if (Volumes.isManifest(file)) {
+				forVolume(verifiedVolume(schema).file).restoreSchemaTo(schema, toSchema, con);
+				return;
+			}
 			zipFile = new ZipFile(file);
-			restoreSchema(schema, toSchema, toSchema, zipFile, con);
+			debug("restore profile: " + loadProfile);
+			loadProfile.beginRestore(con);
+			Session session = new Session(con);
+			restoreSchema(schema, toSchema, toSchema,
+					schemaFactory.getDbBackupObject(con, toSchema, null), zipFile, session);
+			session.reset();
+			loadProfile.endRestore(con);
 			printTimings();
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
 		} catch (IOException e) {
 			throw new RuntimeException(e.getMessage(), e);
 		} finally {
@@ -285,7 +912,455 @@ public final class ZipBackup {
 		}
 	}
 
+	/*
+	 * Restores one schema from the backup to each of the toSchemas, for provisioning
+	 * many copies of a reference schema. The backup entries are read and inflated only
+	 * once, and the copies are restored at the same time on up to parallelism
+	 * connections, each in its own transaction. A failed copy is rolled back without
+	 * affecting the others, and reported once all are done.
+	 */
+	public void restoreSchemaToMany(String schema, List<String> toSchemas) {
+		if (file == null) throw new RuntimeException("restoring to many schemas requires a backup file");
+		if (toSchemas.isEmpty()) return;
+		if (Volumes.isManifest(file)) {
+			try {
+				forVolume(verifiedVolume(schema).file).restoreSchemaToMany(schema, toSchemas);
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+			return;
+		}
+		debug("starting restore of " + schema + " to " + toSchemas.size() + " schemas at " + new Date());
+		ZipFile zipFile = null;
+		final List<TableSource> copySources = new ArrayList<TableSource>();
+		ExecutorService executor = null;
+		final BlockingQueue<Connection> connections = new ArrayBlockingQueue<Connection>(parallelism);
+		List<Connection> opened = new ArrayList<Connection>();
+		try {
+			zipFile = new ZipFile(file);
+			if (getSchemaTables(zipFile).get(schema) == null)
+				throw new RuntimeException("schema " + schema + " not found in backup");
+			timerStart("schemas");
+			final Map<String,List<String>> schemaSql = getSchemaSql(zipFile, schema);
+			timerEnd("schemas");
+			timerStart("table data");
+			copySources.addAll(getCopySources(zipFile, schema));
+			for (TableSource tableSource : copySources) {
+				tableSource.spool = Spool.of(tableSource.open());
+			}
+			final ZipFile packFile = zipFile;
+			for (ZipEntry pack : getPacks(zipFile, schema)) {
+				InputStream is = zipFile.getInputStream(pack);
+				try {
+					CompactLayout.readPack(is, new CompactLayout.TableConsumer() {
+						public void restoreTable(String tableName, InputStream data) throws IOException {
+							TableSource tableSource = new TableSource(packFile, tableName);
+							tableSource.spool = Spool.of(data);
+							copySources.add(tableSource); // so that it is deleted, also on failure
+						}
+					});
+				} finally {
+					is.close();
+				}
+			}
+			timerEnd("table data");
+
+			for (int i = 0; i < Math.min(parallelism, toSchemas.size()); i++) {
+				Connection con = DriverManager.getConnection(jdbcUrl);
+				opened.add(con);
+				con.setAutoCommit(false);
+				connections.add(con);
+			}
+			debug("restore profile: " + loadProfile);
+			executor = Executors.newFixedThreadPool(opened.size());
+			final String fromSchema = schema;
+			final List<TableSource> sources = copySources;
+			Map<String,Future<Void>> results = new LinkedHashMap<String,Future<Void>>();
+			for (final String toSchema : toSchemas) {
+				results.put(toSchema, executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						Connection con = connections.take();
+						try {
+							restoreSchemaCopy(fromSchema, toSchema, schemaSql, sources, con);
+							con.commit();
+						} catch (Exception e) {
+							try {
+								con.rollback();
+							} catch (SQLException ignore) {}
+							throw e;
+						} finally {
+							connections.put(con);
+						}
+						return null;
+					}
+				}));
+			}
+			List<String> failed = new ArrayList<String>();
+			Throwable firstError = null;
+			for (Map.Entry<String,Future<Void>> result : results.entrySet()) {
+				try {
+					Futures.get(result.getValue());
+					processedSchema();
+				} catch (IOException e) {
+					failed.add(result.getKey());
+					if (firstError == null) firstError = e;
+				}
+			}
+			printTimings();
+			if (!failed.isEmpty())
+				throw new RuntimeException("failed restoring " + schema + " to " + failed, firstError);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			if (executor != null) executor.shutdownNow();
+			for (Connection con : opened) {
+				try {
+					con.close();
+				} catch (SQLException ignore) {}
+			}
+			for (TableSource tableSource : copySources) {
+				if (tableSource.spool != null) tableSource.spool.delete();
+			}
+			try {
+				if (zipFile != null) zipFile.close();
+			} catch (IOException ignore) {}
+		}
+		debug("finished restore of " + schema + " at " + new Date());
+	}
+
+	// one copy of restoreSchemaToMany, from the sql and table data already read
+	private void restoreSchemaCopy(String fromSchema, String toSchema, Map<String,List<String>> schemaSql,
+			List<TableSource> copySources, Connection con) throws SQLException, IOException {
+		loadProfile.beginRestore(con);
+		Session session = new Session(con);
+		SchemaRestore schemaRestore = new SchemaRestore(fromSchema, toSchema, toSchema,
+				schemaFactory.getDbBackupObject(con, toSchema, null), schemaFactory, session, loadProfile);
+		try {
+			schemaRestore.restoreSql("sequences.sql", schemaSql.get("sequences.sql"));
+			schemaRestore.restoreSql("tables.sql", schemaSql.get("tables.sql"));
+			for (TableSource tableSource : orderByOwner(copySources, schemaRestore)) {
+				schemaRestore.restoreTable(tableSource.tableName, tableSource.open());
+			}
+			schemaRestore.restoreSql("views.sql", schemaSql.get("views.sql"));
+			schemaRestore.restoreSql("indexes.sql", schemaSql.get("indexes.sql"));
+			schemaRestore.restoreSql("constraints.sql", schemaSql.get("constraints.sql"));
+			schemaRestore.finish();
+		} catch (SQLException e) {
+			throw schemaRestore.error(e);
+		}
+		session.reset();
+		loadProfile.endRestore(con);
+	}
+
+	/*
+	 * Restores each schema in the key set of schemaServers to the server it maps to,
+	 * given by its jdbc url, with the owner it had in the backup. The backup file is
+	 * opened once, and each server has a pool of up to parallelism connections, all
+	 * restoring at the same time, each schema in its own transaction. A failed schema
+	 * does not stop the others, the failures are reported once all are done.
+	 */
+	public void restoreToServers(Map<String,String> schemaServers) {
+		restoreToServers(schemaServers, false);
+	}
+
+	// as above, replacing each schema that is already there when replace is true
+	private void restoreToServers(Map<String,String> schemaServers, final boolean replace) {
+		if (file == null) throw new RuntimeException("restoring to several servers requires a backup file");
+		if (schemaServers.isEmpty()) return;
+		if (Volumes.isManifest(file)) {
+			restoreVolumesToServers(schemaServers, replace);
+			return;
+		}
+		debug("starting restore of " + schemaServers.size() + " schemas to " +
+				new HashSet<String>(schemaServers.values()).size() + " servers at " + new Date());
+		ZipFile zipFile = null;
+		// one for each server, sized to its pool, so that no server waits for the threads of another
+		Map<String,ExecutorService> executors = new HashMap<String,ExecutorService>();
+		List<Connection> opened = new ArrayList<Connection>();
+		try {
+			zipFile = new ZipFile(file);
+			timerStart("schemas");
+			Map<String,Set<ZipEntry>> tables = getSchemaTables(zipFile); // before it is read from several threads
+			for (String schema : schemaServers.keySet()) {
+				if (tables.get(schema) == null) throw new RuntimeException("schema " + schema + " not found in backup");
+			}
+			final Map<String,String> owners = getSchemaOwners(zipFile);
+			if (!isVolume) setTotalCount(schemaServers.size());
+			timerEnd("schemas");
+
+			Map<String,Integer> schemaCounts = new HashMap<String,Integer>();
+			for (String server : schemaServers.values()) {
+				Integer count = schemaCounts.get(server);
+				schemaCounts.put(server, count == null ? 1 : count + 1);
+			}
+			final Map<String,BlockingQueue<Connection>> pools = new HashMap<String,BlockingQueue<Connection>>();
+			for (Map.Entry<String,Integer> server : schemaCounts.entrySet()) {
+				int n = Math.min(parallelism, server.getValue());
+				BlockingQueue<Connection> pool = new ArrayBlockingQueue<Connection>(n);
+				for (int i = 0; i < n; i++) {
+					Connection con = DriverManager.getConnection(server.getKey());
+					opened.add(con);
+					con.setAutoCommit(false);
+					pool.add(con);
+				}
+				pools.put(server.getKey(), pool);
+				executors.put(server.getKey(), Executors.newFixedThreadPool(n));
+			}
+			debug("restore profile: " + loadProfile);
+			final ZipFile backupFile = zipFile;
+			Map<String,Future<Void>> results = new LinkedHashMap<String,Future<Void>>();
+			for (final Map.Entry<String,String> schemaServer : schemaServers.entrySet()) {
+				ExecutorService executor = executors.get(schemaServer.getValue());
+				results.put(schemaServer.getKey(), executor.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						String schema = schemaServer.getKey();
+						BlockingQueue<Connection> pool = pools.get(schemaServer.getValue());
+						Connection con = pool.take();
+						try {
+							loadProfile.beginRestore(con);
+							Session session = new Session(con);
+							String owner = owners.get(schema);
+							Schema existing = schemaFactory.getDbBackupObject(con, schema, null);
+							if (replace && existing != null) {
+								Schema.dropSchema(con, schema);
+								existing = null;
+							}
+							restoreSchema(schema, schema, owner == null ? schema : owner, existing, backupFile, session);
+							session.reset();
+							loadProfile.endRestore(con);
+							con.commit();
+						} catch (Exception e) {
+							try {
+								con.rollback();
+							} catch (SQLException ignore) {}
+							throw e;
+						} finally {
+							pool.put(con);
+						}
+						return null;
+					}
+				}));
+			}
+			List<String> failed = new ArrayList<String>();
+			Throwable firstError = null;
+			for (Map.Entry<String,Future<Void>> result : results.entrySet()) {
+				try {
+					Futures.get(result.getValue());
+					processedSchema();
+				} catch (IOException e) {
+					failed.add(result.getKey());
+					if (firstError == null) firstError = e;
+				}
+			}
+			printTimings();
+			if (!failed.isEmpty())
+				throw new RuntimeException("failed restoring " + failed, firstError);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			for (ExecutorService executor : executors.values()) {
+				executor.shutdownNow();
+			}
+			for (Connection con : opened) {
+				try {
+					con.close();
+				} catch (SQLException ignore) {}
+			}
+			try {
+				if (zipFile != null) zipFile.close();
+			} catch (IOException ignore) {}
+		}
+		debug("finished restore to servers at " + new Date());
+	}
+
+	// restoreToServers of each volume holding some of the schemas, one volume after the other
+	private void restoreVolumesToServers(Map<String,String> schemaServers, boolean replace) {
+		try {
+			Volumes volumes = Volumes.read(file);
+			setTotalCount(schemaServers.size());
+			for (String schema : schemaServers.keySet()) {
+				volumes.find(schema); // all there before any is restored
+			}
+			for (Volumes.Volume volume : volumes.getVolumes()) {
+				Map<String,String> volumeServers = new LinkedHashMap<String,String>();
+				for (Map.Entry<String,String> schemaServer : schemaServers.entrySet()) {
+					if (volume.schemas.contains(schemaServer.getKey()))
+						volumeServers.put(schemaServer.getKey(), schemaServer.getValue());
+				}
+				if (volumeServers.isEmpty()) continue;
+				volume.verify();
+				forVolume(volume.file).restoreToServers(volumeServers, replace);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Restores only the schemas whose fingerprint, see Fingerprints, differs from that
+	 * of the same schema in the target database, or that are not there at all. Each
+	 * is dropped and restored again in the same transaction, so that the old one is
+	 * still seen until it commits, up to parallelism at the same time. Schemas of the
+	 * target that are not in the backup are left alone. The backup has to have been
+	 * dumped with fingerprints.
+	 */
+	public void restoreChanged() {
+		if (file == null) throw new RuntimeException("differential restore requires a backup file");
+		if (Volumes.isManifest(file)) {
+			try {
+				for (Volumes.Volume volume : Volumes.read(file).getVolumes()) {
+					volume.verify();
+					forVolume(volume.file).restoreChanged();
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage(), e);
+			}
+			return;
+		}
+		debug("starting differential restore at " + new Date());
+		Map<String,String> changed = new LinkedHashMap<String,String>();
+		ZipFile zipFile = null;
+		Connection con = null;
+		try {
+			zipFile = new ZipFile(file);
+			ZipEntry entry = zipFile.getEntry(zipRoot + Fingerprints.ENTRY);
+			if (entry == null) throw new RuntimeException("no fingerprints in " + file + ", dumped without them");
+			Fingerprints fingerprints;
+			InputStream is = zipFile.getInputStream(entry);
+			try {
+				fingerprints = Fingerprints.read(is);
+			} finally {
+				is.close();
+			}
+			con = DriverManager.getConnection(jdbcUrl);
+			con.setReadOnly(true);
+			timerStart("fingerprints");
+			Map<String,Schema> existingSchemas = getExistingSchemas(con);
+			List<String> schemas = schemasInBackup();
+			for (String schemaName : schemas) {
+				Schema schema = existingSchemas.get(schemaName);
+				if (schema == null || !fingerprints.contains(schemaName) || !matches(fingerprints, schema, con))
+					changed.put(schemaName, jdbcUrl);
+			}
+			timerEnd("fingerprints");
+			debug(changed.size() + " of " + schemas.size() + " schemas changed");
+			// dropping them would also drop the objects of unchanged schemas, which are not restored
+			StringBuilder dependents = new StringBuilder();
+			for (String schemaName : changed.keySet()) {
+				if (!existingSchemas.containsKey(schemaName)) continue;
+				Set<String> schemaDependents = Schema.getDependentSchemas(con, schemaName);
+				if (!schemaDependents.isEmpty())
+					dependents.append(" ").append(schemaName).append(" (needed by ").append(schemaDependents).append(")");
+			}
+			if (dependents.length() > 0)
+				throw new RuntimeException("changed schemas with objects of other schemas depending on them:" + dependents);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			try {
+				if (con != null) con.close();
+			} catch (SQLException ignore) {}
+			try {
+				if (zipFile != null) zipFile.close();
+			} catch (IOException ignore) {}
+		}
+		restoreToServers(changed, true);
+		debug("finished differential restore at " + new Date());
+	}
+
+	// whether the schema in con has the same fingerprint as in the backup, the data only read if the ddl matches
+	private boolean matches(Fingerprints fingerprints, Schema schema, Connection con)
+			throws SQLException, IOException {
+		if (!fingerprints.matchesDdl(schema.getName(), getCanonicalDdl(schema, con))) return false;
+		// by name from the lists, as getDbBackupObject of the plain factories throws for a missing name
+		Map<String,Sequence> sequences = new HashMap<String,Sequence>();
+		for (Sequence sequence : sequenceFactory.getDbBackupObjects(con, schema)) {
+			sequences.put(sequence.getName(), sequence);
+		}
+		Map<String,Table> tables = new HashMap<String,Table>();
+		for (Table table : tableFactory.getDbBackupObjects(con, schema)) {
+			tables.put(table.getName(), table);
+		}
+		Map<String,String> values = new HashMap<String,String>();
+		for (String name : fingerprints.getNames(schema.getName())) {
+			Sequence sequence = sequences.get(name);
+			if (sequence != null) {
+				values.put(name, Fingerprints.sequenceValue(sequence));
+				continue;
+			}
+			Table table = tables.get(name);
+			if (table == null) return false; // dropped since
+			values.put(name, Fingerprints.tableValue(table, con));
+		}
+		return fingerprints.matchesData(schema.getName(), values);
+	}
+
+	// the owner of each schema, from the schemas.sql of the backup
+	private Map<String,String> getSchemaOwners(ZipFile zipFile) throws IOException {
+		Map<String,String> owners = new HashMap<String,String>();
+		ZipEntry schemasSql = zipFile.getEntry(zipRoot + "schemas.sql");
+		if (schemasSql == null) return owners;
+		InputStream is = zipFile.getInputStream(schemasSql);
+		try {
+			for (String line : DdlTemplates.readLines(is)) {
+				String[] words = line.trim().split("\\s+");
+				if (words.length >= 5 && "CREATE".equals(words[0]) && "SCHEMA".equals(words[1])
+						&& "AUTHORIZATION".equals(words[3]))
+					owners.put(words[2], words[4]);
+			}
+		} finally {
+			is.close();
+		}
+		return owners;
+	}
+
+	/*
+	 * The schema to server map for restoreToServers, read from a file with a line
+	 * for each schema, the schema name and the server, given as
+	 * [user[:password]@]hostname[:port][/database] with the parts not given taken
+	 * from params, separated by white space. Empty lines and lines starting with #
+	 * are ignored.
+	 */
+	static Map<String,String> readServerMap(File mapFile, Map<String,String> params) throws IOException {
+		Map<String,String> schemaServers = new LinkedHashMap<String,String>();
+		Map<String,String> urls = new HashMap<String,String>(); // built once for each server
+		BufferedReader r = new BufferedReader(new FileReader(mapFile));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("#")) continue;
+				String[] fields = line.split("\\s+");
+				if (fields.length != 2) throw new RuntimeException("invalid server map line: " + line);
+				String url = urls.get(fields[1]);
+				if (url == null) {
+					url = buildJdbcUrl(hostParams(params, fields[1]));
+					urls.put(fields[1], url);
+				}
+				if (schemaServers.put(fields[0], url) != null)
+					throw new RuntimeException("schema " + fields[0] + " mapped more than once");
+			}
+		} finally {
+			r.close();
+		}
+		return schemaServers;
+	}
+
 	public void restoreAll() {
+		if (file == null) {
+			restoreStream(System.in, null);
+			return;
+		}
+		if (Volumes.isManifest(file)) {
+			restoreVolumes();
+			return;
+		}
 		debug("starting full restore at " + new Date());
 		ZipFile zipFile = null;
 		Connection con = null;
@@ -293,19 +1368,25 @@ public final class ZipBackup {
 			con = DriverManager.getConnection(jdbcUrl);
 			con.setAutoCommit(false);
 			zipFile = new ZipFile(file);
+			debug("restore profile: " + loadProfile);
+			loadProfile.beginRestore(con);
 
+			Session session = new Session(con);
 			timerStart("schemas");
-			restoreSchemasSql(zipFile, con);
+			restoreSchemasSql(zipFile, session);
 			List<String> schemas = schemasInBackup();
-			setTotalCount(schemas.size());
+			if (!isVolume) setTotalCount(schemas.size());
+			Map<String,Schema> existingSchemas = getExistingSchemas(con);
 			timerEnd("schemas");
 
 			int count = 0;
 			for (String schemaName : schemas) {
-				restoreSchema(schemaName, schemaName, schemaName, zipFile, con);
+				restoreSchema(schemaName, schemaName, schemaName, existingSchemas.get(schemaName), zipFile, session);
 				if (++count%100 == 1) con.commit(); // commit every 100 schemas
 			}
 
+			session.reset();
+			loadProfile.endRestore(con);
 			con.commit();
 			printTimings();
 		} catch (Exception e) {
@@ -324,64 +1405,282 @@ public final class ZipBackup {
 		debug("finished full restore at " + new Date());
 	}
 
-	private void restoreSchema(String fromSchemaName, String toSchemaName, String toOwner, ZipFile zipFile, Connection con) {
+	// the volume of the schema, after checking it against the manifest
+	private Volumes.Volume verifiedVolume(String schema) throws IOException {
+		Volumes.Volume volume = Volumes.read(file).find(schema);
+		volume.verify();
+		return volume;
+	}
+
+	/*
+	 * Restores all volumes, each checked against the manifest first and restored by
+	 * restoreAll in its own transaction, up to parallelism at the same time. A failed
+	 * volume does not stop the others, the failures are reported once all are done.
+	 */
+	private void restoreVolumes() {
+		debug("starting full restore of volumes at " + new Date());
+		ExecutorService executor = null;
 		try {
-			timerStart("schemas");
-			boolean isNewSchema = !toSchemaName.equals(fromSchemaName);
-			Schema toSchema = schemaFactory.getDbBackupObject(con, toSchemaName, null);
-			if (toSchema == null) 
-				toSchema = Schema.createSchema(con, toSchemaName, toOwner, schemaFactory);
-			else
-				toOwner = toSchema.getOwner(); // preserve existing owner
-			setRole(con, toOwner);
-			setSearchPath(con, toSchema);
-			timerEnd("schemas");
+			Volumes volumes = Volumes.read(file);
+			setTotalCount(volumes.getSchemas().size());
+			int n = Math.max(1, Math.min(parallelism, volumes.getVolumes().size()));
+			executor = Executors.newFixedThreadPool(n);
+			Map<String,Future<Void>> results = new LinkedHashMap<String,Future<Void>>();
+			for (final Volumes.Volume volume : volumes.getVolumes()) {
+				results.put(volume.file.getName(), executor.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						volume.verify();
+						forVolume(volume.file).restoreAll();
+						return null;
+					}
+				}));
+			}
+			List<String> failed = new ArrayList<String>();
+			Throwable firstError = null;
+			for (Map.Entry<String,Future<Void>> result : results.entrySet()) {
+				try {
+					Futures.get(result.getValue());
+				} catch (IOException e) {
+					failed.add(result.getKey());
+					if (firstError == null) firstError = e;
+				}
+			}
+			printTimings();
+			if (!failed.isEmpty())
+				throw new RuntimeException("failed restoring volumes " + failed, firstError);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			if (executor != null) executor.shutdownNow();
+		}
+		debug("finished full restore of volumes at " + new Date());
+	}
 
-			String schemaRoot = zipRoot + "schemas/" + fromSchemaName + "/";
+	/*
+	 * Single pass restore from a zip stream, relying on the order of the entries as
+	 * written by the dump. If schemaMap is null, restores everything including
+	 * schemas.sql, otherwise only the schemas in its key set, each to the schema
+	 * it maps to.
+	 */
+	public void restoreStream(InputStream is, Map<String,String> schemaMap) {
+		debug("starting stream restore at " + new Date());
+		Connection con = null;
+		ZipInputStream zis = null;
+		try {
+			con = DriverManager.getConnection(jdbcUrl);
+			con.setAutoCommit(false);
+			// read the stream ahead on another thread, while inflating and COPY IN run on this one
+			zis = new ZipInputStream(ReadAhead.of(is));
+			InputStream entryStream = new FilterInputStream(zis) {
+				@Override
+				public void close() {} // the zip stream is closed after the last entry
+			};
+			debug("restore profile: " + loadProfile);
+			loadProfile.beginRestore(con);
+
+			Session session = new Session(con);
+			if (schemaMap != null) setTotalCount(schemaMap.size());
+			Map<String,Schema> existingSchemas = null;
+			SchemaRestore schemaRestore = null;
+			String currentSchema = null;
+			int count = 0;
+			BlockEntries blockEntries = new BlockEntries(zis);
+			ZipEntry entry;
+			while ((entry = blockEntries.nextEntry()) != null) {
+				String name = entry.getName();
+				if (name.equals(zipRoot + "schemas.sql")) {
+					if (schemaMap != null) continue;
+					timerStart("schemas");
+					SchemaRestore.execSql(entryStream, session, false);
+					existingSchemas = getExistingSchemas(con);
+					setTotalCount(existingSchemas.size());
+					timerEnd("schemas");
+					continue;
+				}
+				if (DdlTemplates.isTemplate(zipRoot, name)) {
+					templateCache.put(DdlTemplates.parseHash(name), DdlTemplates.readLines(entryStream));
+					continue;
+				}
+				String schemaName = parseSchema(name);
+				if (schemaName == null) continue;
+				if (!schemaName.equals(currentSchema)) {
+					if (schemaRestore != null) {
+						finish(schemaRestore);
+						if (++count%100 == 1) con.commit(); // commit every 100 schemas
+					}
+					currentSchema = schemaName;
+					schemaRestore = null;
+					if (schemaMap == null) {
+						if (existingSchemas == null) throw new RuntimeException("schemas.sql not found before " + name);
+						schemaRestore = new SchemaRestore(schemaName, schemaName, schemaName,
+								existingSchemas.get(schemaName), schemaFactory, session, loadProfile);
+					} else if (schemaMap.containsKey(schemaName)) {
+						String toSchema = schemaMap.get(schemaName);
+						schemaRestore = new SchemaRestore(schemaName, toSchema, toSchema,
+								schemaFactory.getDbBackupObject(con, toSchema, null), schemaFactory, session, loadProfile);
+					}
+				}
+				if (schemaRestore == null || entry.isDirectory()) continue;
+				try {
+					if (isTable(name) && CtidChunks.isChunk(name)) {
+						schemaRestore.restoreTable(parseTable(name), new GZIPInputStream(entryStream, 1 << 16));
+					} else if (isTable(name) && ParallelGzip.isBlock(name)) {
+						schemaRestore.restoreTable(parseTable(name), new ParallelGzip.Reader(blockEntries.startingWith(entry)));
+					} else if (isTable(name)) {
+						schemaRestore.restoreTable(parseTable(name), entryStream);
+					} else if (CompactLayout.isPack(name)) {
+						CompactLayout.readPack(entryStream, schemaRestore);
+					} else if (CompactLayout.isDdl(name)) {
+						Map<String,List<String>> schemaDdl = resolveSections(CompactLayout.parseDdl(entryStream), null);
+						schemaRestore.restoreSql("sequences.sql", schemaDdl.get("sequences.sql"));
+						schemaRestore.restoreTemplate(schemaDdl);
+					} else if (name.endsWith(".sql")) {
+						schemaRestore.restoreSql(name.substring(name.lastIndexOf('/') + 1), entryStream);
+					} else if (name.endsWith("/" + DdlTemplates.REF)) {
+						schemaRestore.restoreTemplate(resolveTemplate(DdlTemplates.parseRef(entryStream), null));
+					}
+				} catch (Exception e) {
+					throw schemaRestore.error(e);
+				}
+			}
+			if (schemaRestore != null) finish(schemaRestore);
 
-			timerStart("sequences");
-			ZipEntry sequencesSql = zipFile.getEntry(schemaRoot + "sequences.sql");
-			execSqlZipEntry(zipFile, con, sequencesSql, isNewSchema);
-			timerEnd("sequences");
+			session.reset();
+			loadProfile.endRestore(con);
+			con.commit();
+			printTimings();
+		} catch (Exception e) {
+			try {
+				if (con != null) con.rollback();
+			} catch (SQLException ignore) {}
+			throw new RuntimeException(e.getMessage(), e);
+		} finally {
+			try {
+				if (con != null) con.close();
+			} catch (SQLException ignore) {}
+			try {
+				if (zis != null) zis.close();
+			} catch (IOException ignore) {}
+		}
+		debug("finished stream restore at " + new Date());
+	}
 
-			timerStart("tables");
-			ZipEntry tablesSql = zipFile.getEntry(schemaRoot + "tables.sql");
-			execSqlZipEntry(zipFile, con, tablesSql, isNewSchema);
-			timerEnd("tables");
+	// reads the consecutive compressed blocks of a table from a zip stream
+	private static final class BlockEntries {
 
-			timerStart("table data");
-			Set<ZipEntry> tableEntries = getSchemaTables(zipFile).get(fromSchemaName);
-			for (ZipEntry tableEntry : tableEntries) {
-				String tableName = parseTable(tableEntry.getName());
-				Table table = tableFactory.getDbBackupObject(con, tableName, toSchema);
-				if (!table.getOwner().equals(toOwner) && !isNewSchema) {
-					setRole(con, table.getOwner());
+		private final ZipInputStream zis;
+		private ZipEntry pending = null; // already read, but not part of the current table
+
+		private BlockEntries(ZipInputStream zis) {
+			this.zis = zis;
+		}
+
+		private ZipEntry nextEntry() throws IOException {
+			if (pending != null) {
+				ZipEntry entry = pending;
+				pending = null;
+				return entry;
+			}
+			return zis.getNextEntry();
+		}
+
+		private Iterator<byte[]> startingWith(final ZipEntry first) {
+			final String tableEntry = first.getName().substring(0, first.getName().indexOf('.', first.getName().lastIndexOf('/')));
+			return new Iterator<byte[]>() {
+				private boolean atFirst = true;
+				public boolean hasNext() {
+					if (atFirst) return true;
+					try {
+						if (pending == null) pending = zis.getNextEntry();
+					} catch (IOException e) {
+						throw new RuntimeException(e.getMessage(), e);
+					}
+					return pending != null && ParallelGzip.isBlock(pending.getName())
+							&& pending.getName().startsWith(tableEntry + ".");
 				}
-				table.restore(zipFile.getInputStream(tableEntry), con);
-				if (!table.getOwner().equals(toOwner) && !isNewSchema) {
-					setRole(con, toOwner);
+				public byte[] next() {
+					if (!hasNext()) throw new NoSuchElementException();
+					atFirst = false;
+					pending = null;
+					try {
+						return ParallelGzip.readFully(zis);
+					} catch (IOException e) {
+						throw new RuntimeException(e.getMessage(), e);
+					}
 				}
-			}
-			timerEnd("table data");
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
 
-			timerStart("views");
-			ZipEntry viewsSql = zipFile.getEntry(schemaRoot + "views.sql");
-			execSqlZipEntry(zipFile, con, viewsSql, isNewSchema);
-			timerEnd("views");
+	}
 
-			timerStart("indexes");
-			ZipEntry indexesSql = zipFile.getEntry(schemaRoot + "indexes.sql");
-			execSqlZipEntry(zipFile, con, indexesSql, isNewSchema);
-			timerEnd("indexes");
+	private void finish(SchemaRestore schemaRestore) {
+		try {
+			schemaRestore.finish();
+		} catch (SQLException e) {
+			throw schemaRestore.error(e);
+		}
+	}
 
-			timerStart("constraints");
-			ZipEntry constraintsSql = zipFile.getEntry(schemaRoot + "constraints.sql");
-			execSqlZipEntry(zipFile, con, constraintsSql, isNewSchema);
-			timerEnd("constraints");
+	private Map<String,Schema> getExistingSchemas(Connection con) throws SQLException {
+		Map<String,Schema> existingSchemas = new HashMap<String,Schema>();
+		for (Schema schema : new Schema.SchemaFactory().getDbBackupObjects(con, null)) {
+			existingSchemas.put(schema.getName(), schema);
+		}
+		return existingSchemas;
+	}
 
-			resetSearchPath(con);
-			resetRole(con);
-			processedSchema();
+	// toSchema is the existing target schema, or null if it is to be created
+	private void restoreSchema(String fromSchemaName, String toSchemaName, String toOwner, Schema toSchema,
+			ZipFile zipFile, Session session) {
+		SchemaRestore schemaRestore = null;
+		try {
+			schemaRestore = new SchemaRestore(fromSchemaName, toSchemaName, toOwner, toSchema,
+					schemaFactory, session, loadProfile);
+			String schemaRoot = zipRoot + "schemas/" + fromSchemaName + "/";
+
+			Map<String,List<String>> schemaDdl = getSchemaDdl(zipFile, schemaRoot);
+			if (schemaDdl != null && schemaDdl.containsKey("sequences.sql")) {
+				schemaRestore.restoreSql("sequences.sql", schemaDdl.get("sequences.sql"));
+			} else {
+				restoreSqlZipEntry(zipFile, schemaRoot, "sequences.sql", schemaRestore);
+			}
+			if (schemaDdl != null) {
+				schemaRestore.restoreTemplate(schemaDdl);
+			} else {
+				restoreSqlZipEntry(zipFile, schemaRoot, "tables.sql", schemaRestore);
+			}
+
+			for (ZipEntry pack : getPacks(zipFile, fromSchemaName)) {
+				InputStream is = zipFile.getInputStream(pack);
+				try {
+					CompactLayout.readPack(is, schemaRestore);
+				} finally {
+					is.close();
+				}
+			}
+			List<TableSource> orderedSources = orderByOwner(getCopySources(zipFile, fromSchemaName), schemaRestore);
+			if (!orderedSources.isEmpty()) {
+				// inflate the next table entries while the current one is sent with COPY IN
+				ReadAhead readAhead = new ReadAhead(orderedSources);
+				try {
+					for (TableSource tableSource : orderedSources) {
+						schemaRestore.restoreTable(tableSource.tableName, readAhead.next());
+					}
+				} finally {
+					readAhead.close();
+				}
+			}
+
+			if (schemaDdl == null) {
+				restoreSqlZipEntry(zipFile, schemaRoot, "views.sql", schemaRestore);
+				restoreSqlZipEntry(zipFile, schemaRoot, "indexes.sql", schemaRestore);
+				restoreSqlZipEntry(zipFile, schemaRoot, "constraints.sql", schemaRestore);
+			}
+
+			schemaRestore.finish();
 		} catch (Exception e) {
 			throw new RuntimeException(
 					"error restoring " + fromSchemaName + 
@@ -390,43 +1689,212 @@ public final class ZipBackup {
 		}
 	}
 
-	private void restoreSchemasSql(ZipFile zipFile, Connection con) {
-		try {
-			ZipEntry schemasSql = zipFile.getEntry(zipRoot + "schemas.sql");
-			if (schemasSql!=null) execSqlZipEntry(zipFile, con, schemasSql, false);
-		} catch (SQLException e) {
-			throw new RuntimeException(e.getMessage(), e);
-		} catch (IOException e) {
-			throw new RuntimeException(e.getMessage(), e);
+	// a COPY stream for each table, or for each ctid range of a table dumped in ranges
+	private List<TableSource> getCopySources(ZipFile zipFile, String fromSchemaName) {
+		// a table has either a single entry or a sequence of compressed blocks
+		Map<String,TableSource> tableSources = new HashMap<String,TableSource>();
+		for (ZipEntry tableEntry : getSchemaTables(zipFile).get(fromSchemaName)) {
+			if (!isTable(tableEntry.getName())) continue; // a pack
+			String tableName = parseTable(tableEntry.getName());
+			TableSource tableSource = tableSources.get(tableName);
+			if (tableSource == null) {
+				tableSource = new TableSource(zipFile, tableName);
+				tableSources.put(tableName, tableSource);
+			}
+			tableSource.entries.add(tableEntry);
 		}
+		// each ctid range is a separate COPY stream
+		List<TableSource> copySources = new ArrayList<TableSource>();
+		for (TableSource tableSource : tableSources.values()) {
+			if (CtidChunks.isChunk(tableSource.entries.get(0).getName())) {
+				Collections.sort(tableSource.entries, new Comparator<ZipEntry>() {
+					public int compare(ZipEntry a, ZipEntry b) {
+						return CtidChunks.parseSeq(a.getName()) - CtidChunks.parseSeq(b.getName());
+					}
+				});
+				for (ZipEntry chunk : tableSource.entries) {
+					TableSource chunkSource = new TableSource(zipFile, tableSource.tableName);
+					chunkSource.entries.add(chunk);
+					copySources.add(chunkSource);
+				}
+			} else {
+				copySources.add(tableSource);
+			}
+		}
+		return copySources;
 	}
 
-	private void execSqlZipEntry(ZipFile zipFile, Connection con, ZipEntry zipEntry, boolean isNewSchema) throws IOException, SQLException {	
-		BufferedReader reader = null;
-		try {
-			reader = new BufferedReader(new InputStreamReader(zipFile.getInputStream(zipEntry)));
-			for (String sql = reader.readLine(); sql != null; sql = reader.readLine()) {
-				if (isNewSchema) { // skip any role and ownership changes if restoring to new schema
-					if (sql.startsWith("SET ROLE ") || (sql.startsWith("ALTER ") && sql.contains(" OWNER TO "))) {
-						continue;
+	// the pack entries of the compact layout, in order
+	private List<ZipEntry> getPacks(ZipFile zipFile, String fromSchemaName) {
+		List<ZipEntry> packs = new ArrayList<ZipEntry>();
+		for (ZipEntry entry : getSchemaTables(zipFile).get(fromSchemaName)) {
+			if (!isTable(entry.getName())) packs.add(entry);
+		}
+		Collections.sort(packs, new Comparator<ZipEntry>() {
+			public int compare(ZipEntry a, ZipEntry b) {
+				return a.getName().compareTo(b.getName());
+			}
+		});
+		return packs;
+	}
+
+	// grouped by owner, so that each role is set only once
+	private static List<TableSource> orderByOwner(List<TableSource> copySources, SchemaRestore schemaRestore) {
+		Map<String,List<TableSource>> tablesByOwner = new LinkedHashMap<String,List<TableSource>>();
+		for (TableSource tableSource : copySources) {
+			String owner = schemaRestore.getTableOwner(tableSource.tableName);
+			List<TableSource> ownerTables = tablesByOwner.get(owner);
+			if (ownerTables == null) {
+				ownerTables = new ArrayList<TableSource>();
+				tablesByOwner.put(owner, ownerTables);
+			}
+			ownerTables.add(tableSource);
+		}
+		List<TableSource> orderedSources = new ArrayList<TableSource>();
+		for (List<TableSource> ownerTables : tablesByOwner.values()) {
+			orderedSources.addAll(ownerTables);
+		}
+		return orderedSources;
+	}
+
+	private static final class TableSource implements ReadAhead.Source {
+
+		private final ZipFile zipFile;
+		private final String tableName;
+		private final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+		private Spool spool = null; // inflated once, for restoring to many schemas
+
+		private TableSource(ZipFile zipFile, String tableName) {
+			this.zipFile = zipFile;
+			this.tableName = tableName;
+		}
+
+		public InputStream open() throws IOException {
+			if (spool != null) return spool.open();
+			if (entries.size() == 1 && CtidChunks.isChunk(entries.get(0).getName())) {
+				return new GZIPInputStream(zipFile.getInputStream(entries.get(0)), 1 << 16);
+			}
+			if (entries.size() == 1 && !ParallelGzip.isBlock(entries.get(0).getName())) {
+				return zipFile.getInputStream(entries.get(0));
+			}
+			Collections.sort(entries, new Comparator<ZipEntry>() {
+				public int compare(ZipEntry a, ZipEntry b) {
+					return ParallelGzip.parseSeq(a.getName()) - ParallelGzip.parseSeq(b.getName());
+				}
+			});
+			final Iterator<ZipEntry> itr = entries.iterator();
+			return new ParallelGzip.Reader(new Iterator<byte[]>() {
+				public boolean hasNext() {
+					return itr.hasNext();
+				}
+				public byte[] next() {
+					try {
+						InputStream is = zipFile.getInputStream(itr.next());
+						try {
+							return ParallelGzip.readFully(is);
+						} finally {
+							is.close();
+						}
+					} catch (IOException e) {
+						throw new RuntimeException(e.getMessage(), e);
 					}
 				}
-				PreparedStatement stmt = null;
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			});
+		}
+
+	}
+
+	/*
+	 * The sql by file name when the schema's sql is not in separate entries, from the
+	 * schema.ddl entry of the compact layout, or from the template, otherwise null.
+	 */
+	private Map<String,List<String>> getSchemaDdl(ZipFile zipFile, String schemaRoot) throws IOException {
+		ZipEntry compactDdl = zipFile.getEntry(schemaRoot + CompactLayout.DDL);
+		if (compactDdl != null) {
+			InputStream is = zipFile.getInputStream(compactDdl);
+			try {
+				return resolveSections(CompactLayout.parseDdl(is), zipFile);
+			} finally {
+				is.close();
+			}
+		}
+		ZipEntry templateRef = zipFile.getEntry(schemaRoot + DdlTemplates.REF);
+		if (templateRef != null) {
+			InputStream is = zipFile.getInputStream(templateRef);
+			try {
+				return resolveTemplate(DdlTemplates.parseRef(is), zipFile);
+			} finally {
+				is.close();
+			}
+		}
+		return null;
+	}
+
+	// replaces the template section of a compact schema.ddl with the sql of the template
+	private Map<String,List<String>> resolveSections(Map<String,List<String>> sections, ZipFile zipFile)
+			throws IOException {
+		List<String> ref = sections.remove(DdlTemplates.REF);
+		if (ref != null) sections.putAll(resolveTemplate(DdlTemplates.parseRef(ref), zipFile));
+		return sections;
+	}
+
+	// the sql of each file of a template, read from zipFile unless already cached, zipFile is null when streaming
+	private Map<String,List<String>> resolveTemplate(Map<String,String> ref, ZipFile zipFile) throws IOException {
+		Map<String,List<String>> template = new HashMap<String,List<String>>();
+		for (Map.Entry<String,String> file : ref.entrySet()) {
+			List<String> sql = templateCache.get(file.getValue());
+			if (sql == null) {
+				ZipEntry entry = zipFile == null ? null :
+						zipFile.getEntry(DdlTemplates.templateName(zipRoot, file.getValue()));
+				if (entry == null) throw new RuntimeException("template " + file.getValue() + " not found");
+				InputStream is = zipFile.getInputStream(entry);
 				try {
-					stmt = con.prepareStatement(sql);
-					if (sql.startsWith("SELECT ")) {
-						stmt.executeQuery();
-					} else {
-						stmt.executeUpdate();
-					}
-				} catch (SQLException e) {
-					throw new RuntimeException("error executing sql: " + sql, e);
+					sql = DdlTemplates.readLines(is);
 				} finally {
-					if (stmt != null) stmt.close();
+					is.close();
 				}
+				templateCache.put(file.getValue(), sql);
+			}
+			template.put(file.getKey(), sql);
+		}
+		return template;
+	}
+
+	// the sql of each of the schema's files, read from its own entries, the schema.ddl or the templates
+	private Map<String,List<String>> getSchemaSql(ZipFile zipFile, String schema) throws IOException {
+		String schemaRoot = zipRoot + "schemas/" + schema + "/";
+		Map<String,List<String>> schemaSql = new HashMap<String,List<String>>();
+		Map<String,List<String>> schemaDdl = getSchemaDdl(zipFile, schemaRoot);
+		if (schemaDdl != null) schemaSql.putAll(schemaDdl);
+		for (String fileName : new String[] {"sequences.sql", "tables.sql", "views.sql", "indexes.sql", "constraints.sql"}) {
+			if (schemaSql.containsKey(fileName)) continue;
+			InputStream is = zipFile.getInputStream(zipFile.getEntry(schemaRoot + fileName));
+			try {
+				schemaSql.put(fileName, DdlTemplates.readLines(is));
+			} finally {
+				is.close();
 			}
-		} finally {
-			if (reader != null) reader.close();
+		}
+		return schemaSql;
+	}
+
+	private void restoreSqlZipEntry(ZipFile zipFile, String schemaRoot, String fileName,
+			SchemaRestore schemaRestore) throws IOException, SQLException {
+		ZipEntry zipEntry = zipFile.getEntry(schemaRoot + fileName);
+		schemaRestore.restoreSql(fileName, zipFile.getInputStream(zipEntry));
+	}
+
+	private void restoreSchemasSql(ZipFile zipFile, Session session) {
+		try {
+			ZipEntry schemasSql = zipFile.getEntry(zipRoot + "schemas.sql");
+			if (schemasSql!=null) SchemaRestore.execSql(zipFile.getInputStream(schemasSql), session, false);
+		} catch (SQLException e) {
+			throw new RuntimeException(e.getMessage(), e);
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage(), e);
 		}
 	}
 
@@ -446,7 +1914,7 @@ public final class ZipBackup {
 					tables = new HashSet<ZipEntry>();
 					schemaTables.put(schema, tables);
 				}
-				if (isTable(entry.getName())) {
+				if (isTable(entry.getName()) || CompactLayout.isPack(entry.getName())) {
 					tables.add(entry);
 				}
 			}
@@ -454,48 +1922,6 @@ public final class ZipBackup {
 		return schemaTables;
 	}
 
-	private void setRole(Connection con, String role) throws SQLException {
-		PreparedStatement stmt = null;
-		try {
-			stmt = con.prepareStatement("SET ROLE " + role);
-			//stmt.setString(1, role);
-			stmt.executeUpdate();
-		} finally {
-			if (stmt != null) stmt.close();
-		}
-	}
-
-	private void setSearchPath(Connection con, Schema schema) throws SQLException {
-		PreparedStatement stmt = null;
-		try {
-			stmt = con.prepareStatement("SET SEARCH_PATH = " + schema.getName());
-			//stmt.setString(1, schema.getName());
-			stmt.executeUpdate();
-		} finally {
-			if (stmt != null) stmt.close();
-		}
-	}
-
-	private void resetRole(Connection con) throws SQLException {
-		PreparedStatement stmt = null;
-		try {
-			stmt = con.prepareStatement("RESET ROLE");
-			stmt.executeUpdate();
-		} finally {
-			if (stmt != null) stmt.close();
-		}
-	}
-
-	private void resetSearchPath(Connection con) throws SQLException {
-		PreparedStatement stmt = null;
-		try {
-			stmt = con.prepareStatement("RESET SEARCH_PATH");
-			stmt.executeUpdate();
-		} finally {
-			if (stmt != null) stmt.close();
-		}
-	}
-
 	private static boolean isTable(String name) {
 		int i = name.indexOf("/tables/");
 		return i > -1 && i < name.length() - "/tables/".length();
@@ -503,7 +1929,8 @@ public final class ZipBackup {
 
 	private static String parseTable(String name) {
 		int from = name.indexOf("/tables/") + "/tables/".length();
-		return name.substring(from);
+		int to = name.indexOf('.', from); // compressed block suffix
+		return to < 0 ? name.substring(from) : name.substring(from, to);
 	}
 
 	private static String parseSchema(String name) {
@@ -588,14 +2015,19 @@ public final class ZipBackup {
 
 	static void timerStart(String step) {
 		timing.get().start(step);
+		Progress.get().phaseStart(step);
+		Events.phaseStart(step);
 	}
 
 	static void timerEnd(String step) {
 		timing.get().end(step);
+		Progress.get().phaseEnd(step);
+		Events.phaseEnd(step);
 	}
 
 	static void setTotalCount(int n) {
 		timing.get().totalCount = n;
+		Progress.get().setTotal(n);
 	}
 
 	static void processedSchema() {
@@ -611,6 +2043,35 @@ public final class ZipBackup {
 		timing.get().print(msg);
 	}
 
+	// the params with those of the host given as [user[:password]@]hostname[:port][/database]
+	static Map<String,String> hostParams(Map<String,String> params, String host) {
+		Map<String,String> hostParams = new HashMap<String,String>(params);
+		int at = host.lastIndexOf('@');
+		if (at >= 0) {
+			String user = host.substring(0, at);
+			int colon = user.indexOf(':');
+			hostParams.remove("password");
+			if (colon >= 0) {
+				hostParams.put("password", user.substring(colon + 1));
+				user = user.substring(0, colon);
+			}
+			hostParams.put("user", user);
+			host = host.substring(at + 1);
+		}
+		int slash = host.indexOf('/');
+		if (slash >= 0) {
+			hostParams.put("database", host.substring(slash + 1));
+			host = host.substring(0, slash);
+		}
+		int colon = host.indexOf(':');
+		if (colon >= 0) {
+			hostParams.put("port", host.substring(colon + 1));
+			host = host.substring(0, colon);
+		}
+		if (host.length() > 0) hostParams.put("hostname", host);
+		return hostParams;
+	}
+
 	static String buildJdbcUrl(Map<String,String> params) {
 		StringBuilder buf = new StringBuilder();
 		buf.append("jdbc:postgresql://");